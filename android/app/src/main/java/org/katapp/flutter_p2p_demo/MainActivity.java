@@ -2,25 +2,35 @@ package org.katapp.flutter_p2p_demo;
 
 import io.flutter.embedding.android.FlutterActivity;
 import io.flutter.embedding.engine.FlutterEngine;
+import io.flutter.plugin.common.BinaryMessenger;
+import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 import io.flutter.plugin.common.EventChannel;
 import android.os.Bundle;
+import android.location.Location;
 import android.util.Log;
 import android.net.wifi.p2p.WifiP2pInfo;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import com.google.android.gms.location.FusedLocationProviderClient;
 import com.google.android.gms.location.LocationServices;
+import org.json.JSONException;
 
+import org.katapp.flutter_p2p_demo.concurrent.AppExecutors;
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
 import org.katapp.flutter_p2p_demo.message.Message;
 import org.katapp.flutter_p2p_demo.bluetooth.BleGattServerManager;
 import org.katapp.flutter_p2p_demo.bluetooth.BluetoothClassicManager;
 import org.katapp.flutter_p2p_demo.wifidirect.WiFiDirectManager;
 import org.katapp.flutter_p2p_demo.wifiaware.WiFiAwareManager;
 import org.katapp.flutter_p2p_demo.message.LocationManager;
+import org.katapp.flutter_p2p_demo.transport.Transport;
 
 public class MainActivity extends FlutterActivity {
     private static final String EVENT_CHANNEL = "org.katapp.flutter_p2p_demo/connection";
+    private static final String CHANNEL_PREFIX = "org.katapp.flutter_p2p_demo.";
     private BleGattServerManager bleGattServerManager;
     private BluetoothClassicManager bluetoothClassicManager;
     private WiFiDirectManager wifiDirectManager;
@@ -45,148 +55,111 @@ public class MainActivity extends FlutterActivity {
 
         super.configureFlutterEngine(flutterEngine);
 
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.bluetooth/controller")
-                .setMethodCallHandler((call, result) -> {
-                    switch (call.method) {
-                        case "start":
-                            bleGattServerManager.start();
-                            result.success(null);
-                            break;
-                        case "stop":
-                            bleGattServerManager.stop();
-                            result.success(null);
-                            break;
-                        case "createMessage":
-                            Integer size = call.argument("size");
-
-                            new Thread(() -> {
-                                Message createMessage = new Message(size);
-                                createMessage.setSentLocationAsCurrent();
-                                createMessage.setTimeSentAsCurrent();
+        BinaryMessenger messenger = flutterEngine.getDartExecutor().getBinaryMessenger();
 
-                                //bleGattServerManager.updateMessageList(createMessage);
-                                result.success(createMessage.toJson().toString());
-                            }).start();
-                            break;
-                        case "addDataToReceivedMessage":
-                            String messageString = call.argument("message");
-                            Message message = new Message(messageString);
+        registerController(messenger, "bluetooth", bleGattServerManager, (call, result) -> {
+            switch (call.method) {
+                case "addMessage":
+                    String messageJsonString = call.argument("message");
+                    Message addMessage = parseMessage(messageJsonString, result);
+                    if (addMessage == null) {
+                        break;
+                    }
 
-                            new Thread(() -> {
-                                if (!message.getSender().equals(android.os.Build.MODEL + " :: " + Message.getSenderRandom())) {
-                                    // if message is not from this device, add the received time and location
-                                    message.setTimeReceivedAsCurrent();
-                                    message.setReceivedLocationAsCurrent();
-                                }
+                    bleGattServerManager.updateMessageList(addMessage);
+                    result.success(null);
+                    break;
+                case "getMessageList":
+                    result.success(bleGattServerManager.getMessageList());
+                    break;
+                case "getConnectionParameters":
+                    result.success(bleGattServerManager.getConnectionParameters());
+                    break;
+                default:
+                    result.notImplemented();
+            }
+        });
+
+        registerController(messenger, "bluetooth_classic", bluetoothClassicManager, (call, result) -> {
+            switch (call.method) {
+                case "setWriteCoalescing":
+                    Integer maxWriteSize = call.argument("maxWriteSize");
+                    Integer maxDelayMs = call.argument("maxDelayMs");
+                    if (maxWriteSize == null || maxDelayMs == null) {
+                        result.error("INVALID_ARGUMENTS", "maxWriteSize and maxDelayMs are required", null);
+                        break;
+                    }
 
-                                result.success(message.toJson().toString());
-                            }).start();
-                            break;
-                        case "addMessage":
-                            String messageJsonString = call.argument("message");
-                            Message addMessage = new Message(messageJsonString);
+                    bluetoothClassicManager.setWriteCoalescing(maxWriteSize, maxDelayMs);
+                    result.success(null);
+                    break;
+                default:
+                    result.notImplemented();
+            }
+        });
+        registerController(messenger, "wifidirect", wifiDirectManager, null);
+        registerController(messenger, "wifiaware", wifiAwareManager, null);
+
+        // the Google framework page handles the connections in Dart, only the message methods are native
+        registerController(messenger, "googleframework", null, null);
+    }
 
-                            bleGattServerManager.updateMessageList(addMessage);
-                            result.success(null);
-                            break;
-                        case "isLocationEnabled":
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
-                        case "toggleLocationEnabled":
-                            LocationManager.setLocationEnabled(!LocationManager.isLocationEnabled());
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
-                        default:
-                            result.notImplemented();
-                    }
-                });
-        
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.bluetooth_classic/controller")
+    /**
+     * Registers the "<name>/controller" method channel. Message and location methods are the same
+     * for every page, start, stop, sendMessage, getStats and setReadBufferSize are forwarded to the
+     * transport and anything else to the transport specific handler.
+     * For native transports the "<name>/connection" and "<name>/message" event channels are registered as well.
+     */
+    private void registerController(BinaryMessenger messenger, String name, Transport transport,
+            MethodChannel.MethodCallHandler transportHandler) {
+        new MethodChannel(messenger, CHANNEL_PREFIX + name + "/controller")
                 .setMethodCallHandler((call, result) -> {
                     switch (call.method) {
-                        case "start":
-                            bluetoothClassicManager.start();
-                            result.success(null);
-                            break;
-                        case "stop":
-                            bluetoothClassicManager.stop();
-                            result.success(null);
-                            break;
                         case "createMessage":
                             Integer size = call.argument("size");
+                            if (size == null) {
+                                result.error("INVALID_ARGUMENTS", "size is required", null);
+                                break;
+                            }
 
-                            new Thread(() -> {
+                            // only waits if no fresh fix is cached, the fix request is shared by all messages.
+                            // The task never fails, without a fix its result is null
+                            LocationManager.getLocationAsync().addOnCompleteListener(task -> runOnCpuPool(result, () -> {
                                 Message createMessage = new Message(size);
-                                createMessage.setSentLocationAsCurrent();
+                                createMessage.setSentLocation(task.getResult());
                                 createMessage.setTimeSentAsCurrent();
 
-                                result.success(createMessage.toJson().toString());
-                            }).start();
+                                result.success(createMessage.toJsonString());
+                            }));
                             break;
                         case "addDataToReceivedMessage":
                             String messageString = call.argument("message");
-                            Message message = new Message(messageString);
-
-                            new Thread(() -> {
-                                message.setTimeReceivedAsCurrent();
-                                message.setReceivedLocationAsCurrent();
+                            Message message = parseMessage(messageString, result);
+                            if (message == null) {
+                                break;
+                            }
 
-                                result.success(message.toJson().toString());
-                            }).start();
-                            break;
-                        case "sendMessage":
-                            String messageJsonString = call.argument("message");
-                            Log.d("WiFiAwareActivity", "Sending message to all clients: " + messageJsonString);
-                            bluetoothClassicManager.sendMessage(messageJsonString);
-                            result.success(null);
-                            break;
-                        case "isLocationEnabled":
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
-                        case "toggleLocationEnabled":
-                            LocationManager.setLocationEnabled(!LocationManager.isLocationEnabled());
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
-                        default:
-                            result.notImplemented();
-                    }
-                });
+                            runOnCpuPool(result, () -> {
+                                if (!message.isFromThisDevice()) {
+                                    // if message is not from this device, add the received time and location
+                                    message.setTimeReceivedAsCurrent();
+                                    message.setReceivedLocationAsCurrent();
+                                }
 
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.wifidirect/controller")
-                .setMethodCallHandler((call, result) -> {
-                    switch (call.method) {
-                        case "start":
-                            wifiDirectManager.start();
-                            result.success(null);
-                            break;
-                        case "stop":
-                            wifiDirectManager.stop();
-                            result.success(null);
+                                result.success(message.toJsonString());
+                            });
                             break;
-                        case "createMessage":
-                            Integer size = call.argument("size");
-
-                            new Thread(() -> {
-                                Message createMessage = new Message(size);
-                                createMessage.setSentLocationAsCurrent();
-                                createMessage.setTimeSentAsCurrent();
+                        case "addDataToReceivedMessages":
+                            List<String> messageJsonList = call.argument("messages");
+                            if (messageJsonList == null) {
+                                result.error("INVALID_ARGUMENTS", "messages is required", null);
+                                break;
+                            }
 
-                                result.success(createMessage.toJson().toString());
-                            }).start();
+                            addDataToReceivedMessages(messageJsonList, result);
                             break;
-                        case "addDataToReceivedMessage":
-                            String messageString = call.argument("message");
-                            Message message = new Message(messageString);
-
-                            new Thread(() -> {
-                                message.setTimeReceivedAsCurrent();
-                                message.setReceivedLocationAsCurrent();
-
-                                result.success(message.toJson().toString());
-                            }).start();
+                        case "getExecutorStats":
+                            result.success(AppExecutors.getStats());
                             break;
                         case "isLocationEnabled":
                             result.success(LocationManager.isLocationEnabled());
@@ -195,214 +168,139 @@ public class MainActivity extends FlutterActivity {
                             LocationManager.setLocationEnabled(!LocationManager.isLocationEnabled());
                             result.success(LocationManager.isLocationEnabled());
                             break;
-                        default:
-                            result.notImplemented();
-                    }
-                });
-
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.wifiaware/controller")
-                .setMethodCallHandler((call, result) -> {
-                    switch (call.method) {
-                        case "start":
-                            wifiAwareManager.start();
-                            result.success(null);
-                            break;
-                        case "stop":
-                            wifiAwareManager.stop();
-                            result.success(null);
-                            break;
-                        case "createMessage":
-                            Integer size = call.argument("size");
-
-                            new Thread(() -> {
-                                Message createMessage = new Message(size);
-                                createMessage.setSentLocationAsCurrent();
-                                createMessage.setTimeSentAsCurrent();
-
-                                result.success(createMessage.toJson().toString());
-                            }).start();
-                            break;
-                        case "addDataToReceivedMessage":
-                            String messageString = call.argument("message");
-                            Message message = new Message(messageString);
-
-                            new Thread(() -> {
-                                message.setTimeReceivedAsCurrent();
-                                message.setReceivedLocationAsCurrent();
+                        case "setMaxLocationAge":
+                            Number maxAgeMs = call.argument("maxAgeMs");
+                            if (maxAgeMs == null || maxAgeMs.longValue() < 0) {
+                                result.error("INVALID_ARGUMENTS", "maxAgeMs must not be negative", null);
+                                break;
+                            }
 
-                                result.success(message.toJson().toString());
-                            }).start();
-                            break;
-                        case "sendMessageToSubscribers":
-                            String messageJsonString = call.argument("message");
-                            Log.d("BluetoothClassicActivity", "Sending message client: " + messageJsonString);
-                            wifiAwareManager.sendDataToAllClients(messageJsonString);
+                            LocationManager.setMaxLocationAge(maxAgeMs.longValue());
                             result.success(null);
                             break;
-                        case "isLocationEnabled":
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
-                        case "toggleLocationEnabled":
-                            LocationManager.setLocationEnabled(!LocationManager.isLocationEnabled());
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
                         default:
-                            result.notImplemented();
+                            handleTransportCall(transport, transportHandler, call, result);
                     }
                 });
 
-        new MethodChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.googleframework/controller")
-                .setMethodCallHandler((call, result) -> {
-                    switch (call.method) {
-                        case "createMessage":
-                            Integer size = call.argument("size");
+        if (transport == null) {
+            return;
+        }
 
-                            new Thread(() -> {
-                                Message createMessage = new Message(size);
-                                createMessage.setSentLocationAsCurrent();
-                                createMessage.setTimeSentAsCurrent();
-
-                                result.success(createMessage.toJson().toString());
-                            }).start();
-                            break;
-                        case "addDataToReceivedMessage":
-                            String messageString = call.argument("message");
-                            Message message = new Message(messageString);
-
-                            new Thread(() -> {
-                                message.setTimeReceivedAsCurrent();
-                                message.setReceivedLocationAsCurrent();
-
-                                result.success(message.toJson().toString());
-                            }).start();
-                            break;
-                        case "isLocationEnabled":
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
-                        case "toggleLocationEnabled":
-                            LocationManager.setLocationEnabled(!LocationManager.isLocationEnabled());
-                            result.success(LocationManager.isLocationEnabled());
-                            break;
-                        default:
-                            result.notImplemented();
-                    }
-                });
-
-        new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.bluetooth_classic/connection")
+        new EventChannel(messenger, CHANNEL_PREFIX + name + "/connection")
                 .setStreamHandler(new EventChannel.StreamHandler() {
                     @Override
                     public void onListen(Object arguments, EventChannel.EventSink events) {
-                        bluetoothClassicManager.setBluetoothClassicConnectionListener(connected -> {
-                            events.success(connected);
+                        transport.setConnectionListener(connectionState -> {
+                            events.success(connectionState);
                         });
                     }
 
                     @Override
                     public void onCancel(Object arguments) {
-                        bluetoothClassicManager.setBluetoothClassicConnectionListener(null);
+                        transport.setConnectionListener(null);
                     }
                 });
 
-        new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.bluetooth_classic/message")
+        new EventChannel(messenger, CHANNEL_PREFIX + name + "/message")
                 .setStreamHandler(new EventChannel.StreamHandler() {
                     @Override
                     public void onListen(Object arguments, EventChannel.EventSink events) {
-                        bluetoothClassicManager.setBluetoothClassicMessageListener(message -> {
+                        transport.setMessageListener(message -> {
                             events.success(message);
                         });
                     }
 
                     @Override
                     public void onCancel(Object arguments) {
-                        bluetoothClassicManager.setBluetoothClassicMessageListener(null);
+                        transport.setMessageListener(null);
                     }
                 });
+    }
 
-        new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.wifidirect/connection")
-                .setStreamHandler(new EventChannel.StreamHandler() {
-                    @Override
-                    public void onListen(Object arguments, EventChannel.EventSink events) {
-                        wifiDirectManager.setWiFiP2PConnectionInfoListener(info -> {
-
-                            if (info == null) {
-                                events.success(null);
-                                return;
-                            }
-
-                            if (!info.groupFormed) {
-                                Log.d("WiFiDirectActivity", "Group not formed");
-                                events.error("GROUP_NOT_FORMED", "Group not formed", null);
-                                return;
-                            }
-
-                            events.success(new HashMap<String, Object>() {
-                                {
-                                    put("groupOwnerAddress", info.groupOwnerAddress.getHostAddress());
-                                    put("isGroupOwner", info.isGroupOwner);
-                                }
-                            });
-                        });
-                    }
-
-                    @Override
-                    public void onCancel(Object arguments) {
-                        wifiDirectManager.setWiFiP2PConnectionInfoListener(null);
-                    }
-                });
-
-        new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.wifiaware/connection")
-                .setStreamHandler(new EventChannel.StreamHandler() {
-                    @Override
-                    public void onListen(Object arguments, EventChannel.EventSink events) {
-                        wifiAwareManager.setConnectionInfoListener(connected -> {
-                            events.success(connected);
-                        });
-                    }
-
-                    @Override
-                    public void onCancel(Object arguments) {
-                        wifiAwareManager.setConnectionInfoListener(null);
-                    }
-                });
-
-        new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.wifiaware/messageStream")
-                .setStreamHandler(new EventChannel.StreamHandler() {
-                    @Override
-                    public void onListen(Object arguments, EventChannel.EventSink events) {
-                        wifiAwareManager.setMessageListener(message -> {
-                            events.success(message);
-                        });
-                    }
-
-                    @Override
-                    public void onCancel(Object arguments) {
-                        wifiAwareManager.setMessageListener(null);
+    private static void handleTransportCall(Transport transport, MethodChannel.MethodCallHandler transportHandler,
+            MethodCall call, MethodChannel.Result result) {
+        if (transport != null) {
+            switch (call.method) {
+                case "start":
+                    transport.start();
+                    result.success(null);
+                    return;
+                case "stop":
+                    transport.stop();
+                    result.success(null);
+                    return;
+                case "sendMessage":
+                    transport.sendMessage(call.argument("message"));
+                    result.success(null);
+                    return;
+                case "getStats":
+                    result.success(transport.getStats());
+                    return;
+                case "setReadBufferSize":
+                    Integer readBufferSize = call.argument("size");
+                    if (readBufferSize == null || readBufferSize < FrameDecoder.MIN_READ_SIZE) {
+                        result.error("INVALID_ARGUMENTS", "size must be at least " + FrameDecoder.MIN_READ_SIZE + " bytes", null);
+                        return;
                     }
-                });
 
-        new EventChannel(flutterEngine.getDartExecutor().getBinaryMessenger(),
-                "org.katapp.flutter_p2p_demo.bluetooth/connection")
-                .setStreamHandler(new EventChannel.StreamHandler() {
-                    @Override
-                    public void onListen(Object arguments, EventChannel.EventSink events) {
-                        bleGattServerManager.setBluetoothMessageListener(messageList -> {
-                            events.success(messageList);
-                        });
-                    }
+                    transport.setReadBufferSize(readBufferSize);
+                    result.success(null);
+                    return;
+            }
+        }
+
+        if (transportHandler != null) {
+            transportHandler.onMethodCall(call, result);
+        } else {
+            result.notImplemented();
+        }
+    }
 
-                    @Override
-                    public void onCancel(Object arguments) {
-                        bleGattServerManager.setBluetoothMessageListener(null);
-                    }
-                });
+    // Stamps a batch of received messages with a single timestamp and a single location read
+    private static void addDataToReceivedMessages(List<String> messageJsonList, MethodChannel.Result result) {
+        runOnCpuPool(result, () -> {
+            Date timeReceived = new Date();
+            Location location = LocationManager.getCachedLocation();
+
+            List<String> fullDataMessages = new ArrayList<>(messageJsonList.size());
+            for (String messageJson : messageJsonList) {
+                Message message = parseMessage(messageJson, result);
+                if (message == null) {
+                    return;
+                }
+
+                // messages from this device keep their data
+                if (!message.isFromThisDevice()) {
+                    message.setReceivedData(timeReceived, location);
+                }
+                fullDataMessages.add(message.toJsonString());
+            }
+
+            result.success(fullDataMessages);
+        });
+    }
 
+    // Runs the work of a method call on the shared CPU pool, fails the call if the pool is saturated
+    private static void runOnCpuPool(MethodChannel.Result result, Runnable task) {
+        if (!AppExecutors.cpu().tryExecute(task)) {
+            result.error("BUSY", "Too many pending tasks", null);
+        }
     }
 
-}
\ No newline at end of file
+    // Parses a message sent by Dart, answers the call with an error if it is not valid
+    private static Message parseMessage(String messageJson, MethodChannel.Result result) {
+        if (messageJson == null) {
+            result.error("INVALID_MESSAGE", "message is missing", null);
+            return null;
+        }
+
+        try {
+            return Message.fromJson(messageJson);
+        } catch (JSONException e) {
+            Log.e("MainActivity", "Invalid message JSON", e);
+            result.error("INVALID_MESSAGE", e.getMessage(), null);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package org.katapp.flutter_p2p_demo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.katapp.flutter_p2p_demo.message.BroadcastFrame;
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
+import org.katapp.flutter_p2p_demo.message.interfaces.FrameListener;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+
+/**
+ * State the GATT server keeps for a single connected central.
+ * GATT callbacks for one device are delivered in order, so the receive side needs no locking.
+ * The notification queue is also filled by senders on other threads and is synchronized.
+ */
+class BleDeviceConnection {
+    // ATT default until the central negotiates a larger MTU
+    static final int DEFAULT_MTU = 23;
+    // an ATT notification uses 3 bytes of the MTU for opcode and handle
+    static final int NOTIFICATION_OVERHEAD = 3;
+    // frames beyond this are dropped, a slow central must not hold every broadcast frame
+    static final int MAX_QUEUED_BYTES = 1024 * 1024;
+    // a chunk the stack keeps refusing is given up, together with the rest of its frame
+    static final int MAX_CHUNK_RETRIES = 50;
+
+    private final BluetoothDevice device;
+    // a frame counts as sent once its last chunk was notified
+    private final TransportStats stats;
+    // every central writes its own chunked stream, reassemble them separately
+    private final FrameDecoder frameDecoder;
+    // value of a long write, collected from prepare write requests until it is executed
+    private final ByteArrayOutputStream preparedWrite = new ByteArrayOutputStream();
+
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile int txPhy = BluetoothDevice.PHY_LE_1M;
+    private volatile int rxPhy = BluetoothDevice.PHY_LE_1M;
+
+    // frames waiting to be notified, only one chunk is handed to the stack until onNotificationSent.
+    // The frames are shared with the other centrals, every queued frame holds a reference
+    private final ArrayDeque<BroadcastFrame> notificationQueue = new ArrayDeque<>();
+    private BroadcastFrame currentNotification;
+    private int currentNotificationOffset = 0;
+    private int inFlightLength = 0;
+    private boolean notificationInFlight = false;
+    private int chunkRetries = 0;
+    // bytes of the queued frames and the current frame
+    private int queuedBytes = 0;
+
+    // throughput is measured over the time the queue was busy, idle time is not counted
+    private long notificationBytesSent = 0;
+    private long notificationBusyNanos = 0;
+    private long notificationBusySince = 0;
+
+    BleDeviceConnection(BluetoothDevice device, int readBufferSize, FrameListener frameListener, TransportStats stats) {
+        this.device = device;
+        this.stats = stats;
+        this.frameDecoder = new FrameDecoder(readBufferSize, frameListener);
+    }
+
+    BluetoothDevice getDevice() {
+        return device;
+    }
+
+    FrameDecoder getFrameDecoder() {
+        return frameDecoder;
+    }
+
+    int getMtu() {
+        return mtu;
+    }
+
+    void setMtu(int mtu) {
+        this.mtu = mtu;
+    }
+
+    // largest value that fits into a single notification with the current MTU
+    int getMaxNotificationLength() {
+        return mtu - NOTIFICATION_OVERHEAD;
+    }
+
+    int getTxPhy() {
+        return txPhy;
+    }
+
+    int getRxPhy() {
+        return rxPhy;
+    }
+
+    void setPhy(int txPhy, int rxPhy) {
+        this.txPhy = txPhy;
+        this.rxPhy = rxPhy;
+    }
+
+    /**
+     * Queues a frame to be notified, the queue holds a reference to it.
+     *
+     * @return false if too many bytes are queued for this central, the frame is not queued
+     */
+    synchronized boolean queueNotification(BroadcastFrame frame) {
+        if (queuedBytes + frame.length() > MAX_QUEUED_BYTES) {
+            return false;
+        }
+        if (!isNotificationQueueBusy()) {
+            notificationBusySince = System.nanoTime();
+        }
+        notificationQueue.add(frame.retain());
+        queuedBytes += frame.length();
+        return true;
+    }
+
+    // Gives back the frames that were not notified when the central disconnects
+    synchronized void releaseNotifications() {
+        if (currentNotification != null) {
+            currentNotification.release();
+            currentNotification = null;
+        }
+        BroadcastFrame frame;
+        while ((frame = notificationQueue.poll()) != null) {
+            frame.release();
+        }
+        notificationInFlight = false;
+        queuedBytes = 0;
+    }
+
+    /**
+     * Takes the next MTU sized chunk of the queued payloads and marks it as in flight.
+     *
+     * @return the chunk, or null if a chunk is still in flight or nothing is queued
+     */
+    synchronized byte[] nextNotificationChunk() {
+        if (notificationInFlight) {
+            return null;
+        }
+
+        if (currentNotification == null) {
+            currentNotification = notificationQueue.poll();
+            currentNotificationOffset = 0;
+            chunkRetries = 0;
+            if (currentNotification == null) {
+                return null;
+            }
+        }
+
+        inFlightLength = Math.min(getMaxNotificationLength(), currentNotification.length() - currentNotificationOffset);
+        notificationInFlight = true;
+        // the stack only takes arrays, only the chunk is copied out of the shared frame
+        byte[] chunk = new byte[inFlightLength];
+        currentNotification.copyTo(currentNotificationOffset, chunk, 0, inFlightLength);
+        return chunk;
+    }
+
+    /**
+     * A failed chunk stays current and is sent again by the next nextNotificationChunk call,
+     * until it failed too often and its frame is dropped.
+     */
+    synchronized void onNotificationSent(boolean success) {
+        notificationInFlight = false;
+        if (currentNotification == null) {
+            return;
+        }
+
+        if (!success) {
+            chunkRetries++;
+            if (chunkRetries > MAX_CHUNK_RETRIES) {
+                stats.onSendError();
+                finishCurrentNotification();
+            }
+            return;
+        }
+
+        chunkRetries = 0;
+        currentNotificationOffset += inFlightLength;
+        notificationBytesSent += inFlightLength;
+        if (currentNotificationOffset >= currentNotification.length()) {
+            stats.onMessageSent(currentNotification.payloadLength());
+            finishCurrentNotification();
+        }
+    }
+
+    private void finishCurrentNotification() {
+        queuedBytes -= currentNotification.length();
+        currentNotification.release();
+        currentNotification = null;
+        chunkRetries = 0;
+
+        if (!isNotificationQueueBusy()) {
+            notificationBusyNanos += System.nanoTime() - notificationBusySince;
+        }
+    }
+
+    synchronized int getNotificationQueueSize() {
+        return notificationQueue.size();
+    }
+
+    synchronized double getNotificationBytesPerSecond() {
+        long busyNanos = notificationBusyNanos;
+        if (isNotificationQueueBusy()) {
+            busyNanos += System.nanoTime() - notificationBusySince;
+        }
+        return busyNanos == 0 ? 0 : notificationBytesSent * 1e9 / busyNanos;
+    }
+
+    private boolean isNotificationQueueBusy() {
+        return notificationInFlight || !notificationQueue.isEmpty() || currentNotification != null;
+    }
+
+    Map<String, Object> getConnectionParameters() {
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("address", device.getAddress());
+        parameters.put("mtu", mtu);
+        parameters.put("txPhy", phyToString(txPhy));
+        parameters.put("rxPhy", phyToString(rxPhy));
+        parameters.put("notificationQueueSize", getNotificationQueueSize());
+        parameters.put("notificationBytesPerSecond", getNotificationBytesPerSecond());
+        return parameters;
+    }
+
+    private static String phyToString(int phy) {
+        switch (phy) {
+            case BluetoothDevice.PHY_LE_1M:
+                return "LE_1M";
+            case BluetoothDevice.PHY_LE_2M:
+                return "LE_2M";
+            case BluetoothDevice.PHY_LE_CODED:
+                return "LE_CODED";
+            default:
+                return "UNKNOWN";
+        }
+    }
+
+    /**
+     * Queues one part of a long write. The parts of a long write arrive with increasing offsets
+     * into the characteristic value, anything else is rejected.
+     *
+     * @return false if the offset does not continue the queued value
+     */
+    boolean queuePreparedWrite(int offset, byte[] value) {
+        if (offset != preparedWrite.size()) {
+            return false;
+        }
+        preparedWrite.write(value, 0, value.length);
+        return true;
+    }
+
+    /**
+     * Completes a long write. If it is executed, the whole queued value is decoded at once.
+     */
+    void executePreparedWrite(boolean execute) throws IOException {
+        try {
+            if (execute && preparedWrite.size() > 0) {
+                byte[] value = preparedWrite.toByteArray();
+                frameDecoder.feed(value, 0, value.length);
+            }
+        } finally {
+            preparedWrite.reset();
+        }
+    }
+}
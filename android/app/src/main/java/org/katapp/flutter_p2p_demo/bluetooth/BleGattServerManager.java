@@ -7,43 +7,105 @@ import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothProfile;
+import android.bluetooth.BluetoothStatusCodes;
 import android.content.Context;
 import java.util.UUID;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONException;
 import android.util.Log;
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
 
-import org.katapp.flutter_p2p_demo.bluetooth.interfaces.BluetoothMessageListener;
 import org.katapp.flutter_p2p_demo.bluetooth.BleAdvertisingManager;
+import org.katapp.flutter_p2p_demo.concurrent.AppExecutors;
+import org.katapp.flutter_p2p_demo.concurrent.SerialExecutor;
+import org.katapp.flutter_p2p_demo.message.BroadcastFrame;
+import org.katapp.flutter_p2p_demo.message.FrameCodec;
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
 import org.katapp.flutter_p2p_demo.message.Message;
-
-public class BleGattServerManager {
+import org.katapp.flutter_p2p_demo.message.MessageStore;
+import org.katapp.flutter_p2p_demo.message.interfaces.MessageStoreListener;
+import org.katapp.flutter_p2p_demo.transport.Transport;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportConnectionListener;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportMessageListener;
+
+public class BleGattServerManager implements Transport {
     private Context context;
     private BluetoothManager bluetoothManager;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothGattServer gattServer;
     private BleAdvertisingManager advertisingManager;
     private BluetoothGattCharacteristic characteristic;
-    private BluetoothMessageListener messageListener;
-
-    private String priorData = "";
+    // receives the message list deltas, see postMessageListDelta
+    private TransportMessageListener messageListener;
+    // receives whether at least one central is connected
+    private TransportConnectionListener connectionListener;
+    private final TransportStats stats = new TransportStats();
+    // a central writes at most one MTU at a time, the smaller decoder default is enough
+    private volatile int readBufferSize = FrameDecoder.DEFAULT_CAPACITY;
 
     private Handler mainHandler = new Handler(Looper.getMainLooper());
 
-    public void setBluetoothMessageListener(BluetoothMessageListener listener) {
+    private boolean le2MPhySupported = false;
+
+    private static final long NOTIFICATION_RETRY_DELAY_MS = 10;
+
+    @Override
+    public void setMessageListener(TransportMessageListener listener) {
         this.messageListener = listener;
     }
 
-    private final List<Message> messageList = new ArrayList<>();
-    private final List<BluetoothDevice> subscribedDevices = new ArrayList<>();
+    @Override
+    public void setConnectionListener(TransportConnectionListener listener) {
+        this.connectionListener = listener;
+    }
+
+    @Override
+    public void setReadBufferSize(int bytes) {
+        readBufferSize = bytes;
+    }
+
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> transportStats = stats.toMap();
+        transportStats.put("connectedDevices", connections.size());
+        transportStats.put("subscribedDevices", subscribedDevices.size());
+        transportStats.put("storedMessages", messageStore.size());
+        transportStats.put("readBufferSize", readBufferSize);
+        return transportStats;
+    }
+
+    private final MessageStore messageStore = new MessageStore(MessageStore.DEFAULT_CAPACITY, new MessageStoreListener() {
+        @Override
+        public void onMessageAdded(Message message) {
+            queueMessageListDelta(Collections.singletonList(message), Collections.emptyList());
+        }
+
+        @Override
+        public void onMessageEvicted(Message message) {
+            queueMessageListDelta(Collections.emptyList(), Collections.singletonList(message));
+        }
+    });
+    // serializes the deltas off the store lock, one after another so they keep the order of the store.
+    // Every change has to reach Dart, the pending deltas are not limited
+    private final SerialExecutor deltaExecutor = new SerialExecutor(AppExecutors.cpu(), Integer.MAX_VALUE);
+    private final List<BluetoothDevice> subscribedDevices = new CopyOnWriteArrayList<>();
+    private final ConcurrentHashMap<BluetoothDevice, BleDeviceConnection> connections = new ConcurrentHashMap<>();
 
     private final UUID SERVICE_UUID = UUID.fromString("c07b8cf2-b8ff-4ef4-b4e1-dd8aa2415f81");
     private final UUID CHARACTERISTIC_UUID = UUID.fromString("5e6525b1-4a90-4baf-a4a1-9b4a53641970");
@@ -56,14 +118,17 @@ public class BleGattServerManager {
         advertisingManager = new BleAdvertisingManager(context);
     }
 
+    @Override
     public void start() {
         if (bluetoothAdapter == null) {
             System.out.println("Bluetooth not supported");
             return;
         }
 
+        le2MPhySupported = bluetoothAdapter.isLe2MPhySupported();
+
         System.out.println("Suported Modes:");
-        System.out.println("2M PHY: " + bluetoothAdapter.isLe2MPhySupported());
+        System.out.println("2M PHY: " + le2MPhySupported);
         System.out.println("CODED PHY: " + bluetoothAdapter.isLeCodedPhySupported());
 
         gattServer = bluetoothManager.openGattServer(context, gattServerCallback);
@@ -87,6 +152,7 @@ public class BleGattServerManager {
         gattServer.addService(service);
     }
 
+    @Override
     public void stop() {
         if (gattServer != null) {
             gattServer.close();
@@ -94,58 +160,269 @@ public class BleGattServerManager {
         }
         advertisingManager.stopAdvertising();
 
-        priorData = "";
-
+        for (BleDeviceConnection connection : connections.values()) {
+            connection.releaseNotifications();
+        }
+        connections.clear();
         subscribedDevices.clear();
-        messageList.clear();
+        messageStore.clear();
     }
 
     public void updateMessageList(Message message) {
-        // if any of the messages in messageList equal the message return
-        for (Message m : messageList) {
-            if (m.equals(message)) {
-                System.out.println("Message already in list");
-                return;
+        // messages arrive from the GATT callbacks of several centrals at once, the store is synchronized.
+        // Listeners are updated through the store listener with only the changed messages
+        if (!messageStore.add(message)) {
+            System.out.println("Message already in list");
+            return;
+        }
+
+        System.out.println("Message added to list: " + message.getId());
+    }
+
+    // All stored messages, for listeners that subscribe after messages were received
+    public String getMessageList() {
+        return toJsonArray(messageStore.getMessages());
+    }
+
+    // Messages are serialized with the streaming writer, their padding can be large
+    private static String toJsonArray(List<Message> messages) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < messages.size(); i++) {
+            if (i > 0) {
+                json.append(',');
             }
+            json.append(messages.get(i).toJsonString());
         }
+        return json.append(']').toString();
+    }
 
-        messageList.add(message);
+    // Called by the store listener under the store lock, only hands the messages off
+    private void queueMessageListDelta(List<Message> added, List<Message> evicted) {
+        Runnable task = () -> postMessageListDelta(added, evicted);
+        try {
+            deltaExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // only happens while no delta is pending and the pool is saturated, running it here keeps the order
+            task.run();
+        }
+    }
 
-        System.out.println("Message added to list: " + message.getId());
+    private void postMessageListDelta(List<Message> added, List<Message> evicted) {
+        JSONArray evictedJson = new JSONArray();
+        try {
+            for (Message m : evicted) {
+                evictedJson.put(new JSONObject()
+                    .put("id", m.getId())
+                    .put("sender", m.getSender()));
+            }
+        } catch (JSONException e) {
+            e.printStackTrace();
+            return;
+        }
 
+        // JSON object with the "added" messages and the "evicted" message keys (id and sender).
+        // Runs on the delta executor, so the deltas are posted in the order of the store
+        String deltaString = "{\"added\":" + toJsonArray(added) + ",\"evicted\":" + evictedJson + "}";
         mainHandler.post(() -> {
             if (messageListener != null) {
-                List<JSONObject> jsonMessageList = new ArrayList<>();
-                for (Message m : messageList) {
-                    jsonMessageList.add(m.toJson());
-                }
-                messageListener.onMessageListUpdated(jsonMessageList.toString());
+                messageListener.onMessageReceived(deltaString);
             }
         });
     }
 
-    private void notifySubscribedDevices(byte[] data) {
+    // Negotiated MTU and PHY of every connected central
+    public List<Map<String, Object>> getConnectionParameters() {
+        List<Map<String, Object>> parameters = new ArrayList<>();
+        for (BleDeviceConnection connection : connections.values()) {
+            parameters.add(connection.getConnectionParameters());
+        }
+        return parameters;
+    }
+
+    // Sends a message to all subscribed centrals as notifications
+    @Override
+    public void sendMessage(String messageJson) {
+        // encoded once, every central is notified from the same frame
+        BroadcastFrame frame = BroadcastFrame.encodeMessage(messageJson);
+        try {
+            notifySubscribedDevices(frame);
+        } finally {
+            frame.release();
+        }
+    }
+
+    private void notifySubscribedDevices(BroadcastFrame frame) {
         System.out.println("Notify subscribed devices");
         for (BluetoothDevice device : subscribedDevices) {
+            // a central that is disconnecting has no state anymore, it must not be created again
+            BleDeviceConnection connection = connections.get(device);
+            if (connection == null) {
+                continue;
+            }
+
             System.out.println("Notifying Device: " + device.getAddress());
-            characteristic.setValue(data);
-            gattServer.notifyCharacteristicChanged(device, characteristic, false);
+            if (!connection.queueNotification(frame)) {
+                stats.onSendError();
+                Log.e("BleGattServerManager", "Dropping message for " + device.getAddress() + ", too many queued notifications");
+                continue;
+            }
+            sendNextNotification(connection);
+        }
+    }
+
+    // Hands the next chunk of the device's queue to the stack, onNotificationSent triggers the one after
+    private void sendNextNotification(BleDeviceConnection connection) {
+        BluetoothGattServer server = gattServer;
+        BluetoothDevice device = connection.getDevice();
+        if (server == null || connections.get(device) != connection) {
+            return;
+        }
+
+        byte[] chunk = connection.nextNotificationChunk();
+        if (chunk == null) {
+            return;
+        }
+
+        boolean queued;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            queued = server.notifyCharacteristicChanged(device, characteristic, false, chunk) == BluetoothStatusCodes.SUCCESS;
+        } else {
+            // the characteristic value is shared by all devices
+            synchronized (characteristic) {
+                characteristic.setValue(chunk);
+                queued = server.notifyCharacteristicChanged(device, characteristic, false);
+            }
+        }
+
+        if (!queued) {
+            // the stack is busy, try the same chunk again shortly
+            connection.onNotificationSent(false);
+            retryNotification(connection);
         }
     }
 
-    private void handleMessageReceived(String message) throws JSONException {
-        JSONObject messageJSON = new JSONObject(message);
-        Message m = new Message(messageJSON.toString());
+    // onNotificationSent gives up on a chunk after too many retries, so this does not go on forever
+    private void retryNotification(BleDeviceConnection connection) {
+        mainHandler.postDelayed(() -> sendNextNotification(connection), NOTIFICATION_RETRY_DELAY_MS);
+    }
+
+    private void handleFrame(byte type, byte flags, byte[] data, int offset, int length) {
+        if (type != FrameCodec.TYPE_MESSAGE) {
+            Log.d("BleGattServerManager", "Ignoring frame of type " + type);
+            return;
+        }
+
+        stats.onMessageReceived(length);
+        try {
+            handleMessageReceived(Message.fromJson(data, offset, length));
+        } catch (JSONException e) {
+            System.out.println("Error parsing JSON");
+        }
+    }
+
+    private void handleMessageReceived(Message m) {
         m.setTimeReceivedAsCurrent();
         //m.setReceivedLocationAsCurrent();
         updateMessageList(m);
     }
 
+    private void postConnectionState() {
+        mainHandler.post(() -> {
+            if (connectionListener != null) {
+                connectionListener.onConnectionChanged(!connections.isEmpty());
+            }
+        });
+    }
+
+    private BleDeviceConnection getConnection(BluetoothDevice device) {
+        // writes may arrive before the connection state callback, create the state lazily
+        // computeIfAbsent needs API 24, putIfAbsent keeps whichever state was created first
+        BleDeviceConnection connection = connections.get(device);
+        if (connection == null) {
+            BleDeviceConnection created = new BleDeviceConnection(device, readBufferSize, this::handleFrame, stats);
+            connection = connections.putIfAbsent(device, created);
+            if (connection == null) {
+                connection = created;
+            }
+        }
+        return connection;
+    }
+
     private final BluetoothGattServerCallback gattServerCallback = new BluetoothGattServerCallback() {
         @Override
         public void onConnectionStateChange(BluetoothDevice device, int status, int newState) {
             super.onConnectionStateChange(device, status, newState);
-            // Handle device connection and disconnection
+
+            if (newState == BluetoothProfile.STATE_CONNECTED) {
+                Log.d("BleGattServerManager", "Device connected: " + device.getAddress());
+                getConnection(device);
+                postConnectionState();
+
+                if (gattServer != null) {
+                    if (le2MPhySupported) {
+                        // the controller falls back to 1M if the central does not support 2M,
+                        // onPhyUpdate reports what was actually negotiated
+                        gattServer.setPreferredPhy(device, BluetoothDevice.PHY_LE_2M_MASK,
+                                BluetoothDevice.PHY_LE_2M_MASK, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+                    } else {
+                        gattServer.readPhy(device);
+                    }
+                }
+            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+                Log.d("BleGattServerManager", "Device disconnected: " + device.getAddress());
+                // not subscribed first, so a concurrent send does not queue for it anymore.
+                // Partially received frames are dropped so a reconnect starts with a clean stream
+                subscribedDevices.remove(device);
+                BleDeviceConnection connection = connections.remove(device);
+                if (connection != null) {
+                    connection.releaseNotifications();
+                }
+                postConnectionState();
+            }
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothDevice device, int mtu) {
+            super.onMtuChanged(device, mtu);
+            Log.d("BleGattServerManager", "MTU of " + device.getAddress() + " changed to " + mtu);
+            getConnection(device).setMtu(mtu);
+        }
+
+        @Override
+        public void onPhyUpdate(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+            super.onPhyUpdate(device, txPhy, rxPhy, status);
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d("BleGattServerManager", "PHY update of " + device.getAddress() + " failed with status " + status);
+                return;
+            }
+            Log.d("BleGattServerManager", "PHY of " + device.getAddress() + " updated to tx " + txPhy + " rx " + rxPhy);
+            getConnection(device).setPhy(txPhy, rxPhy);
+        }
+
+        @Override
+        public void onPhyRead(BluetoothDevice device, int txPhy, int rxPhy, int status) {
+            super.onPhyRead(device, txPhy, rxPhy, status);
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                getConnection(device).setPhy(txPhy, rxPhy);
+            }
+        }
+
+        @Override
+        public void onNotificationSent(BluetoothDevice device, int status) {
+            super.onNotificationSent(device, status);
+            BleDeviceConnection connection = connections.get(device);
+            if (connection == null) {
+                return;
+            }
+
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                Log.d("BleGattServerManager", "Notification to " + device.getAddress() + " failed with status " + status);
+                connection.onNotificationSent(false);
+                retryNotification(connection);
+                return;
+            }
+            connection.onNotificationSent(true);
+            sendNextNotification(connection);
         }
 
         @Override
@@ -177,44 +454,27 @@ public class BleGattServerManager {
                 boolean responseNeeded, int offset, byte[] value) {
             if (CHARACTERISTIC_UUID.equals(characteristic.getUuid())) {
                 
-                String receivedData = new String(value);
-
-                Log.d("BleGattServerManager", "Received data: " + receivedData);
+                Log.d("BleGattServerManager", "Received " + value.length + " bytes at offset " + offset + (preparedWrite ? " (prepared)" : ""));
 
-                String fullData = priorData + receivedData;
-
-                Log.d("BleGattServerManager", "Full data: " + fullData);
-
-                // check if message ends with delimiter %
-                if (!fullData.endsWith("%")) {
-                    priorData = fullData;
+                BleDeviceConnection connection = getConnection(device);
 
+                if (preparedWrite) {
+                    // part of a long write, only queue it until onExecuteWrite
+                    boolean queued = connection.queuePreparedWrite(offset, value);
                     if (responseNeeded) {
-                        gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, value);
+                        // prepare write responses echo the value so the central can verify it
+                        gattServer.sendResponse(device, requestId,
+                                queued ? BluetoothGatt.GATT_SUCCESS : BluetoothGatt.GATT_INVALID_OFFSET, offset, value);
                     }
-
                     return;
                 }
 
-                priorData = "";
-
+                FrameDecoder frameDecoder = connection.getFrameDecoder();
                 try {
-                    String dataWithoutFinalDelimiter = fullData.substring(0, fullData.length() - 1);
-                    String[] messages = dataWithoutFinalDelimiter.split("%");
-
-                    if (messages.length == 0) {
-                        Log.d("BleGattServerManager", "Received one message: " + dataWithoutFinalDelimiter);
-                        handleMessageReceived(dataWithoutFinalDelimiter);
-                        return;
-                    }
-
-                    Log.d("BleGattServerManager", "Received multiple messages " + Arrays.toString(messages));
-
-                    for (String message : messages) {
-                        handleMessageReceived(message);
-                    }
-                } catch (JSONException e) {
-                    System.out.println("Error parsing JSON");
+                    frameDecoder.feed(value, 0, value.length);
+                } catch (IOException e) {
+                    Log.e("BleGattServerManager", "Invalid frame from " + device.getAddress() + ", dropping buffered data", e);
+                    frameDecoder.reset();
                 }
 
                 if (responseNeeded) {
@@ -223,6 +483,22 @@ public class BleGattServerManager {
             }
         }
 
+        @Override
+        public void onExecuteWrite(BluetoothDevice device, int requestId, boolean execute) {
+            super.onExecuteWrite(device, requestId, execute);
+            Log.d("BleGattServerManager", (execute ? "Executing" : "Cancelling") + " long write from " + device.getAddress());
+
+            BleDeviceConnection connection = getConnection(device);
+            try {
+                connection.executePreparedWrite(execute);
+            } catch (IOException e) {
+                Log.e("BleGattServerManager", "Invalid frame from " + device.getAddress() + ", dropping buffered data", e);
+                connection.getFrameDecoder().reset();
+            }
+
+            gattServer.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, null);
+        }
+
         @Override
         public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
                 BluetoothGattDescriptor descriptor,
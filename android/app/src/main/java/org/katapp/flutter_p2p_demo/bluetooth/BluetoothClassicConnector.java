@@ -0,0 +1,309 @@
+package org.katapp.flutter_p2p_demo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Connects to the bonded devices and the peers found by discovery in parallel.
+ *
+ * Most bonded devices are usually out of range and an RFCOMM connect to them only fails after a long
+ * page timeout. Attempts therefore run concurrently, each one is cancelled after its own timeout, and
+ * devices that were connected recently are tried first. Attempts to a device that got linked another
+ * way, or any attempt once the piconet is full, are cancelled.
+ */
+class BluetoothClassicConnector {
+    private static final String PREFERENCES_NAME = "bluetooth_classic_peers";
+    private static final int MAX_PARALLEL_ATTEMPTS = 3;
+    private static final long CONNECT_TIMEOUT_MS = 6000;
+    // peers that were not connected for this long are tried in bonding order again
+    private static final long RECENT_PEER_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+    private static final int MAX_RECENT_PEERS = 16;
+
+    private final BluetoothClassicManager manager;
+    private final UUID uuid;
+    private final SharedPreferences preferences;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    // guarded by this
+    private final ArrayDeque<BluetoothDevice> pendingDevices = new ArrayDeque<>();
+    private final Map<String, Attempt> attempts = new HashMap<>();
+    private boolean running = false;
+    private long startedAt = 0;
+    private long firstConnectLatencyMs = -1;
+    private long attemptsStarted = 0;
+    private long connected = 0;
+    private long timedOut = 0;
+    private long failed = 0;
+    private long cancelled = 0;
+
+    BluetoothClassicConnector(Context context, BluetoothClassicManager manager, UUID uuid) {
+        this.manager = manager;
+        this.uuid = uuid;
+        this.preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    synchronized void start(Collection<BluetoothDevice> devices) {
+        cancel();
+        running = true;
+        startedAt = SystemClock.elapsedRealtime();
+        firstConnectLatencyMs = -1;
+
+        pendingDevices.addAll(orderByRecentSuccess(devices));
+        Log.d("BluetoothClassic", "Connecting to " + pendingDevices.size() + " bonded devices");
+        startNextAttempts();
+    }
+
+    /**
+     * Adds devices to the running attempts, in the given order, without resetting the connector.
+     * Used for the peers found by discovery.
+     */
+    synchronized void connect(Collection<BluetoothDevice> devices) {
+        if (!running) {
+            running = true;
+            startedAt = SystemClock.elapsedRealtime();
+        }
+
+        for (BluetoothDevice device : devices) {
+            if (!manager.isLinked(device.getAddress()) && !attempts.containsKey(device.getAddress())
+                    && !pendingDevices.contains(device)) {
+                pendingDevices.add(device);
+            }
+        }
+        startNextAttempts();
+    }
+
+    // Discovery slows down connecting, it is only started while no attempt is running
+    synchronized boolean isBusy() {
+        return !attempts.isEmpty() || !pendingDevices.isEmpty();
+    }
+
+    synchronized void cancel() {
+        running = false;
+        pendingDevices.clear();
+        for (Attempt attempt : new ArrayList<>(attempts.values())) {
+            attempt.cancel(false);
+        }
+    }
+
+    /**
+     * Called for every new link, outgoing or accepted. A pending attempt to the same device is not needed
+     * anymore, and once no more links fit all remaining attempts are cancelled.
+     */
+    synchronized void onLinked(String address, boolean linksFull) {
+        if (linksFull) {
+            Log.d("BluetoothClassic", "All links in use, cancelling remaining connect attempts");
+            cancel();
+            return;
+        }
+
+        Iterator<BluetoothDevice> iterator = pendingDevices.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getAddress().equals(address)) {
+                iterator.remove();
+            }
+        }
+
+        Attempt attempt = attempts.get(address);
+        if (attempt != null) {
+            attempt.cancel(false);
+        }
+    }
+
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("pendingAttempts", pendingDevices.size());
+        stats.put("runningAttempts", attempts.size());
+        stats.put("attempts", attemptsStarted);
+        stats.put("connected", connected);
+        stats.put("timedOut", timedOut);
+        stats.put("failed", failed);
+        stats.put("cancelled", cancelled);
+        stats.put("firstConnectLatencyMs", firstConnectLatencyMs);
+        return stats;
+    }
+
+    private void startNextAttempts() {
+        while (running && attempts.size() < MAX_PARALLEL_ATTEMPTS && !pendingDevices.isEmpty()) {
+            BluetoothDevice device = pendingDevices.poll();
+            if (manager.isLinked(device.getAddress()) || attempts.containsKey(device.getAddress())) {
+                continue;
+            }
+
+            Attempt attempt = new Attempt(device);
+            attempts.put(device.getAddress(), attempt);
+            attemptsStarted++;
+            attempt.start();
+        }
+    }
+
+    private void onAttemptFinished(Attempt attempt, boolean success) {
+        BluetoothSocket socket = null;
+
+        synchronized (this) {
+            handler.removeCallbacks(attempt.timeout);
+            if (attempts.get(attempt.address) == attempt) {
+                attempts.remove(attempt.address);
+            }
+
+            if (success && running && !attempt.cancelled) {
+                connected++;
+                long now = SystemClock.elapsedRealtime();
+                if (firstConnectLatencyMs < 0) {
+                    firstConnectLatencyMs = now - startedAt;
+                }
+                Log.d("BluetoothClassic", "Connected to " + attempt.address + " in " + (now - attempt.startedAt) + " ms");
+                rememberPeer(attempt.address);
+                socket = attempt.socket;
+            } else if (attempt.timedOut) {
+                timedOut++;
+                Log.d("BluetoothClassic", "Connect to " + attempt.address + " timed out");
+            } else if (attempt.cancelled) {
+                cancelled++;
+            } else {
+                failed++;
+            }
+
+            startNextAttempts();
+        }
+
+        if (socket != null) {
+            manager.manageBluetoothSocket(socket);
+        } else if (success) {
+            // connected after it was cancelled, nobody uses the socket
+            closeSocket(attempt.socket);
+        }
+    }
+
+    // Recently connected peers first, the most recent one first, the others keep their order
+    private List<BluetoothDevice> orderByRecentSuccess(Collection<BluetoothDevice> devices) {
+        Map<String, Long> lastSuccess = loadRecentPeers();
+
+        List<BluetoothDevice> recent = new ArrayList<>();
+        List<BluetoothDevice> others = new ArrayList<>();
+        for (BluetoothDevice device : devices) {
+            if (lastSuccess.containsKey(device.getAddress())) {
+                recent.add(device);
+            } else {
+                others.add(device);
+            }
+        }
+
+        Collections.sort(recent, (first, second) ->
+                Long.compare(lastSuccess.get(second.getAddress()), lastSuccess.get(first.getAddress())));
+        recent.addAll(others);
+        return recent;
+    }
+
+    private Map<String, Long> loadRecentPeers() {
+        Map<String, Long> recentPeers = new HashMap<>();
+        long oldest = System.currentTimeMillis() - RECENT_PEER_MAX_AGE_MS;
+        SharedPreferences.Editor editor = preferences.edit();
+
+        for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+            Object value = entry.getValue();
+            if (value instanceof Long && (Long) value >= oldest) {
+                recentPeers.put(entry.getKey(), (Long) value);
+            } else {
+                editor.remove(entry.getKey());
+            }
+        }
+        editor.apply();
+        return recentPeers;
+    }
+
+    private void rememberPeer(String address) {
+        Map<String, Long> recentPeers = loadRecentPeers();
+        SharedPreferences.Editor editor = preferences.edit();
+        editor.putLong(address, System.currentTimeMillis());
+
+        // forget the oldest peers beyond the limit
+        recentPeers.remove(address);
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(recentPeers.entrySet());
+        Collections.sort(entries, (first, second) -> Long.compare(second.getValue(), first.getValue()));
+        for (int i = MAX_RECENT_PEERS - 1; i < entries.size(); i++) {
+            editor.remove(entries.get(i).getKey());
+        }
+        editor.apply();
+    }
+
+    private static void closeSocket(BluetoothSocket socket) {
+        if (socket == null) {
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e("BluetoothClassic", "Could not close the client socket", e);
+        }
+    }
+
+    private class Attempt {
+        final BluetoothDevice device;
+        final String address;
+        final long startedAt = SystemClock.elapsedRealtime();
+        final Runnable timeout = () -> cancel(true);
+
+        volatile BluetoothSocket socket;
+        volatile boolean cancelled = false;
+        volatile boolean timedOut = false;
+
+        Attempt(BluetoothDevice device) {
+            this.device = device;
+            this.address = device.getAddress();
+        }
+
+        void start() {
+            handler.postDelayed(timeout, CONNECT_TIMEOUT_MS);
+
+            new Thread(() -> {
+                boolean success = false;
+                try {
+                    // insecure, so discovered peers connect without pairing first
+                    socket = device.createInsecureRfcommSocketToServiceRecord(uuid);
+                    if (!cancelled) {
+                        // blocks until connected, or until cancel closes the socket
+                        socket.connect();
+                        success = true;
+                    }
+                } catch (IOException e) {
+                    if (!cancelled) {
+                        Log.d("BluetoothClassic", "Connect to " + address + " failed: " + e.getMessage());
+                    }
+                } finally {
+                    // also covers a cancel that ran before the socket existed and found nothing to close
+                    if (!success) {
+                        closeSocket(socket);
+                    }
+                }
+                onAttemptFinished(this, success);
+            }, "classic-connect-" + address).start();
+        }
+
+        // Closing the socket makes a blocking connect fail right away
+        void cancel(boolean timedOut) {
+            if (cancelled) {
+                return;
+            }
+            this.timedOut = timedOut;
+            cancelled = true;
+            closeSocket(socket);
+        }
+    }
+}
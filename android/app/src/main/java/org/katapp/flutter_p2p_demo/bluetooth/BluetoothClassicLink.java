@@ -0,0 +1,110 @@
+package org.katapp.flutter_p2p_demo.bluetooth;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+
+/**
+ * RFCOMM connection to one remote device.
+ *
+ * Reads run on an own thread and are decoded with the shared frame format,
+ * writes go through the coalescing writer of the link.
+ */
+class BluetoothClassicLink {
+    private final BluetoothSocket socket;
+    private final BluetoothClassicManager manager;
+    // counters of this device only, the manager keeps the totals
+    private final TransportStats linkStats = new TransportStats();
+    private volatile CoalescingWriter writer;
+
+    private Thread readThread;
+    private volatile boolean closed = false;
+
+    BluetoothClassicLink(BluetoothSocket socket, BluetoothClassicManager manager) {
+        this.socket = socket;
+        this.manager = manager;
+    }
+
+    String getAddress() {
+        return socket.getRemoteDevice().getAddress();
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = linkStats.toMap();
+        stats.put("address", getAddress());
+        if (writer != null) {
+            stats.put("writer", writer.getStats());
+        }
+        return stats;
+    }
+
+    void setWriteBudget(int maxWriteSize, int maxDelayMs) {
+        if (writer != null) {
+            writer.setBudget(maxWriteSize, maxDelayMs);
+        }
+    }
+
+    void start(int maxWriteSize, int maxDelayMs) throws IOException {
+        writer = new CoalescingWriter(socket.getOutputStream(), getAddress(), this::close,
+                linkStats, manager.getTransportStats());
+        writer.setBudget(maxWriteSize, maxDelayMs);
+        writer.start();
+
+        readThread = new Thread(() -> {
+            try {
+                InputStream inputStream = socket.getInputStream();
+                FrameDecoder decoder = new FrameDecoder(manager.getReadBufferSize(), (type, flags, data, offset, length) -> {
+                    linkStats.onMessageReceived(length);
+                    manager.onLinkFrame(type, flags, data, offset, length);
+                });
+
+                while (decoder.readFrom(inputStream) != -1) {
+                    // frames are passed to the listener as soon as they are complete
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.e("BluetoothClassic", "Error reading from " + getAddress() + ": " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        });
+        readThread.start();
+    }
+
+    // Queues an encoded frame, returns false if too many writes are pending
+    boolean send(byte[] frame) {
+        CoalescingWriter currentWriter = writer;
+        return !closed && currentWriter != null && currentWriter.offer(frame);
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        try {
+            socket.close();
+            Log.d("BluetoothClassic", "Socket closed");
+        } catch (IOException e) {
+            Log.e("BluetoothClassic", "Error closing socket", e);
+        }
+
+        if (writer != null) {
+            writer.close();
+        }
+        if (readThread != null) {
+            readThread.interrupt();
+        }
+        manager.onLinkClosed(this);
+    }
+}
@@ -12,61 +12,108 @@ import android.content.BroadcastReceiver;
 import android.util.Log;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.Parcelable;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
 
-import org.katapp.flutter_p2p_demo.bluetooth.interfaces.BluetoothClassicConnectionListener;
-import org.katapp.flutter_p2p_demo.bluetooth.interfaces.BluetoothClassicMessageListener;
+import org.katapp.flutter_p2p_demo.message.FrameCodec;
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
+import org.katapp.flutter_p2p_demo.transport.Transport;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportConnectionListener;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportMessageListener;
 
-public class BluetoothClassicManager {
+public class BluetoothClassicManager implements Transport {
     BluetoothManager bluetoothManager;
     BluetoothAdapter bluetoothAdapter;
     Context context;
 
     final String NAME = "KATAPP_BLUETOOTH_CLASSIC";
-    final UUID BLUETOOTH_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+    // own service UUID instead of the generic serial port one, discovery only connects to devices offering it
+    final UUID BLUETOOTH_UUID = UUID.fromString("77231e5c-44e3-4b2d-84f0-62ad1a61d820");
+
+    // a piconet has at most 7 active devices besides the central
+    static final int MAX_LINKS = 7;
 
     private AcceptThread acceptThread;
-    private ConnectThread connectThread;
-    private Thread readThread;
+    private BluetoothClassicConnector connector;
+    private final BluetoothClassicPeerTable peerTable = new BluetoothClassicPeerTable(BLUETOOTH_UUID);
 
-    private BluetoothClassicMessageListener messageListener;
-    private BluetoothClassicConnectionListener connectionListener;
+    // discovery runs in rounds while links are free, but not while connect attempts are running
+    private static final long DISCOVERY_INTERVAL_MS = 30000;
+    private static final long DISCOVERY_RETRY_DELAY_MS = 2000;
+    private static final int DISCOVERABLE_DURATION_S = 300;
+    private final Runnable discoveryRound = this::startDiscovery;
+    // one link per remote device, keyed by its address
+    private final Map<String, BluetoothClassicLink> links = new ConcurrentHashMap<>();
 
-    private BluetoothSocket socket;
+    // size and latency budget of the coalescing writers, see CoalescingWriter
+    private volatile int maxWriteSize = CoalescingWriter.DEFAULT_MAX_WRITE_SIZE;
+    private volatile int maxWriteDelayMs = CoalescingWriter.DEFAULT_MAX_DELAY_MS;
+    private volatile int readBufferSize = FrameDecoder.DEFAULT_STREAM_CAPACITY;
 
-    private final BluetoothBroadcastReceiver receiver = new BluetoothBroadcastReceiver();
+    private TransportMessageListener messageListener;
+    private TransportConnectionListener connectionListener;
+    private final TransportStats stats = new TransportStats();
 
-    private Handler mainHandler;
+    private final BluetoothBroadcastReceiver receiver = new BluetoothBroadcastReceiver(this);
 
-    private String fullMessage = "";
+    private Handler mainHandler;
 
     public BluetoothClassicManager(Context context) {
         this.context = context;
     }
 
-    public void setBluetoothClassicMessageListener(BluetoothClassicMessageListener messageListener) {
+    @Override
+    public void setMessageListener(TransportMessageListener messageListener) {
         this.messageListener = messageListener;
     }
 
-    public void setBluetoothClassicConnectionListener(BluetoothClassicConnectionListener connectionListener) {
+    @Override
+    public void setConnectionListener(TransportConnectionListener connectionListener) {
         this.connectionListener = connectionListener;
     }
 
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> transportStats = stats.toMap();
+        transportStats.put("connected", !links.isEmpty());
+        transportStats.put("readBufferSize", readBufferSize);
+
+        List<Map<String, Object>> linkStats = new ArrayList<>();
+        for (BluetoothClassicLink link : links.values()) {
+            linkStats.add(link.getStats());
+        }
+        transportStats.put("links", linkStats);
+        transportStats.put("peers", peerTable.getStats());
+
+        BluetoothClassicConnector currentConnector = connector;
+        if (currentConnector != null) {
+            transportStats.put("connector", currentConnector.getStats());
+        }
+        return transportStats;
+    }
+
     public BluetoothAdapter getBluetoothAdapter() {
         return bluetoothAdapter;
     }
     
+    @Override
     public void start() {
         bluetoothManager = context.getSystemService(BluetoothManager.class);
         bluetoothAdapter = bluetoothManager.getAdapter();
 
-        // Register for broadcasts when a device is discovered.
+        // Register for broadcasts when a device is discovered and when its services are known
         IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_FOUND);
+        filter.addAction(BluetoothDevice.ACTION_UUID);
+        filter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         context.registerReceiver(receiver, filter);
 
         Log.d("Bluetooth", "Bluetooth adapter: " + bluetoothAdapter.getName() + " " + bluetoothAdapter.getAddress());
@@ -75,31 +122,50 @@ public class BluetoothClassicManager {
         acceptThread = new AcceptThread(NAME, BLUETOOTH_UUID, this);
         acceptThread.start();
 
+        // other devices only find this one by discovery while it is discoverable
+        if (bluetoothAdapter.getScanMode() != BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
+            Intent discoverableIntent = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
+            discoverableIntent.putExtra(BluetoothAdapter.EXTRA_DISCOVERABLE_DURATION, DISCOVERABLE_DURATION_S);
+            discoverableIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            context.startActivity(discoverableIntent);
+        }
+
         mainHandler = new Handler(Looper.getMainLooper());
 
+        connector = new BluetoothClassicConnector(context, this, BLUETOOTH_UUID);
         getPairedDevices();
+
+        // peers that were never paired are found by discovery
+        mainHandler.post(discoveryRound);
     }
 
+    @Override
     public void stop() {
+        if (mainHandler != null) {
+            mainHandler.removeCallbacks(discoveryRound);
+        }
+        if (bluetoothAdapter != null) {
+            bluetoothAdapter.cancelDiscovery();
+        }
+        peerTable.clear();
+
         bluetoothAdapter = null;
         bluetoothManager = null;
 
         if (acceptThread != null) {
-            acceptThread.interrupt();
+            acceptThread.cancel();
             acceptThread = null;
         }
 
-        if (connectThread != null) {
-            connectThread.interrupt();
-            connectThread = null;
+        if (connector != null) {
+            connector.cancel();
+            connector = null;
         }
 
-        if (readThread != null) {
-            readThread.interrupt();
-            readThread = null;
+        for (BluetoothClassicLink link : links.values()) {
+            link.close();
         }
-
-        closeSocket();
+        links.clear();
 
         mainHandler = null;
 
@@ -111,125 +177,212 @@ public class BluetoothClassicManager {
 
         Log.d("BluetoothClassic", "Paired devices: " + pairedDevices.size());
 
-        if (pairedDevices.size() > 0) {
-        // There are paired devices. Get the name and address of each paired device.
-            for (BluetoothDevice device : pairedDevices) {
-                String deviceName = device.getName();
-                String deviceHardwareAddress = device.getAddress(); // MAC address
-                Log.d("BluetoothClassic", "Device name: " + deviceName + " MAC address: " + deviceHardwareAddress);
+        for (BluetoothDevice device : pairedDevices) {
+            Log.d("BluetoothClassic", "Device name: " + device.getName() + " MAC address: " + device.getAddress());
+        }
 
-                // start connect thread
-                connectThread = new ConnectThread(device, BLUETOOTH_UUID, this);
-                connectThread.start();
-            }
+        // an ongoing discovery slows down connecting
+        bluetoothAdapter.cancelDiscovery();
+        connector.start(pairedDevices);
+    }
+
+    // Runs on the main thread, starts a discovery round if nothing else needs the radio
+    private void startDiscovery() {
+        BluetoothAdapter adapter = bluetoothAdapter;
+        BluetoothClassicConnector currentConnector = connector;
+        if (adapter == null || currentConnector == null || mainHandler == null) {
+            return;
+        }
+
+        if (links.size() >= MAX_LINKS || currentConnector.isBusy()) {
+            mainHandler.postDelayed(discoveryRound, DISCOVERY_RETRY_DELAY_MS);
+            return;
+        }
+
+        if (!adapter.isDiscovering() && !adapter.startDiscovery()) {
+            Log.e("BluetoothClassic", "Could not start discovery");
+            mainHandler.postDelayed(discoveryRound, DISCOVERY_INTERVAL_MS);
+        }
+    }
+
+    void onDeviceFound(BluetoothDevice device, short rssi) {
+        peerTable.onDeviceFound(device, rssi);
+    }
+
+    void onDiscoveryFinished() {
+        if (mainHandler == null) {
+            return;
+        }
+
+        // SDP queries are only reliable once discovery is done, the results arrive as ACTION_UUID
+        for (BluetoothDevice device : peerTable.getUnknownPeers()) {
+            device.fetchUuidsWithSdp();
+        }
+
+        BluetoothClassicConnector currentConnector = connector;
+        if (currentConnector != null) {
+            currentConnector.connect(peerTable.getConnectTargets());
+        }
+
+        mainHandler.postDelayed(discoveryRound, DISCOVERY_INTERVAL_MS);
+    }
+
+    void onUuidsFound(BluetoothDevice device, Parcelable[] uuids) {
+        if (!peerTable.onUuids(device, uuids)) {
+            return;
+        }
+
+        Log.d("BluetoothClassic", "Peer offers the service: " + device.getAddress());
+        BluetoothClassicConnector currentConnector = connector;
+        if (currentConnector != null && !isLinked(device.getAddress())) {
+            currentConnector.connect(Collections.singletonList(device));
         }
     }
 
+    boolean isLinked(String address) {
+        return links.containsKey(address);
+    }
+
+    // Called from the accept and connect threads for every new connection
     public void manageBluetoothSocket(BluetoothSocket socket) {
-        if (this.socket == null) {
-            this.socket = socket;
-            if (mainHandler != null) {
-                mainHandler.post(() -> {
-                    if (connectionListener != null) {
-                        connectionListener.onConnectionStateChanged(true);
-                    }
-                });
+        String address = socket.getRemoteDevice().getAddress();
+        BluetoothClassicLink link = new BluetoothClassicLink(socket, this);
+
+        synchronized (links) {
+            // both devices may connect to each other at the same time, one link per device is enough
+            if (links.containsKey(address) || links.size() >= MAX_LINKS) {
+                Log.d("BluetoothClassic", "Connected to device: " + address + " not used, "
+                        + (links.containsKey(address) ? "already connected" : links.size() + " devices connected") + ", socket closed");
+                closeUnusedSocket(socket);
+                return;
             }
-            startReading();
-            Log.d("BluetoothClassic", "Connected to device: " + socket.getRemoteDevice().getName() + " " + socket.getRemoteDevice().getAddress());
+            links.put(address, link);
+        }
+
+        BluetoothClassicConnector currentConnector = connector;
+        if (currentConnector != null) {
+            currentConnector.onLinked(address, links.size() >= MAX_LINKS);
+        }
+
+        try {
+            link.start(maxWriteSize, maxWriteDelayMs);
+        } catch (IOException e) {
+            Log.e("BluetoothClassic", "Could not start link to " + address, e);
+            link.close();
             return;
         }
+        Log.d("BluetoothClassic", "Connected to device: " + socket.getRemoteDevice().getName() + " " + address);
+        postConnectionState();
+    }
 
-        closeSocket();
-        Log.d("Bluetooth", "Connected to device: " + socket.getRemoteDevice().getName() + " " + socket.getRemoteDevice().getAddress() + " already connected, socket closed");
+    /**
+     * Sets how many bytes of queued frames are combined into one write and how long a writer
+     * waits for more frames before it writes. Applies to the current and all later links.
+     */
+    public void setWriteCoalescing(int maxWriteSize, int maxDelayMs) {
+        this.maxWriteSize = maxWriteSize;
+        this.maxWriteDelayMs = maxDelayMs;
+        for (BluetoothClassicLink link : links.values()) {
+            link.setWriteBudget(maxWriteSize, maxDelayMs);
+        }
     }
 
-    private void handleLongMessageRead(String message) {
-        fullMessage += message;
-        
-        if (fullMessage.endsWith("%")) {
-            String fullMessageString = fullMessage.substring(0, fullMessage.length() - 1);
-            fullMessage = "";
-
-            String[] splitStrings = fullMessageString.split("%");
-
-            for (String splitString : splitStrings) {
-                if (mainHandler != null) {
-                    mainHandler.post(() -> {
-                        if (messageListener != null) {
-                            messageListener.onMessageReceived(splitString);
-                        }
-                    });
-                }
-            }
+    void onLinkClosed(BluetoothClassicLink link) {
+        if (links.remove(link.getAddress(), link)) {
+            Log.d("BluetoothClassic", "Device disconnected: " + link.getAddress());
+            postConnectionState();
         }
     }
 
-    private void startReading() {
-        readThread = new Thread(() -> {
-            try {
-                InputStream inputStream = socket.getInputStream();
-                byte[] buffer = new byte[1024];
-                int bytesRead;
+    TransportStats getTransportStats() {
+        return stats;
+    }
 
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    String message = new String(buffer, 0, bytesRead);
-                    handleLongMessageRead(message);
-                }
-            } catch (IOException e) {
-                if (mainHandler != null) {
-                    mainHandler.post(() -> {
-                        if (connectionListener != null) {
-                            connectionListener.onConnectionStateChanged(false);
-                        }
-                    });
-                }
-                Log.e("BluetoothClassic", "Error reading from socket: " + e.getMessage());
-                closeSocket();
-            }
-        });
-        readThread.start();
+    @Override
+    public void setReadBufferSize(int bytes) {
+        readBufferSize = bytes;
     }
 
-    public void sendMessage(String message) {
-        if (socket != null) {
-            new Thread(() -> {
-                try {
-                    OutputStream outputStream = socket.getOutputStream();
-                    outputStream.write((message + "%").getBytes());
-                } catch (IOException e) {
-                    Log.e("BluetoothClassic", "Error writing to socket: " + e.getMessage());
+    int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    void onLinkFrame(byte type, byte flags, byte[] data, int offset, int length) {
+        if (type != FrameCodec.TYPE_MESSAGE) {
+            Log.d("BluetoothClassic", "Ignoring frame of type " + type);
+            return;
+        }
+
+        String message = FrameCodec.decodeString(data, offset, length);
+        stats.onMessageReceived(length);
+
+        Handler handler = mainHandler;
+        if (handler != null) {
+            handler.post(() -> {
+                if (messageListener != null) {
+                    messageListener.onMessageReceived(message);
                 }
-                Log.d("BluetoothClassic", "Sent message: " + message);
-            }).start();
+            });
         }
     }
 
-    private void closeSocket() {
-        if (socket == null) {
+    // Sends the message to every connected device, the frame is encoded once
+    @Override
+    public void sendMessage(String message) {
+        if (links.isEmpty()) {
             return;
         }
 
+        byte[] frame = FrameCodec.encodeMessage(message);
+        for (BluetoothClassicLink link : links.values()) {
+            if (!link.send(frame)) {
+                stats.onSendError();
+                Log.e("BluetoothClassic", "Dropping message for " + link.getAddress() + ", too many pending writes");
+            }
+        }
+    }
+
+    private void postConnectionState() {
+        Handler handler = mainHandler;
+        if (handler != null) {
+            handler.post(() -> {
+                if (connectionListener != null) {
+                    connectionListener.onConnectionChanged(!links.isEmpty());
+                }
+            });
+        }
+    }
+
+    private static void closeUnusedSocket(BluetoothSocket socket) {
         try {
             socket.close();
-            socket = null;
-            Log.d("BluetoothClassic", "Socket closed");
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.e("BluetoothClassic", "Could not close the unused socket", e);
         }
     }
 }
 
 class BluetoothBroadcastReceiver extends BroadcastReceiver {
+    private final BluetoothClassicManager bluetoothClassicManager;
+
+    BluetoothBroadcastReceiver(BluetoothClassicManager bluetoothClassicManager) {
+        this.bluetoothClassicManager = bluetoothClassicManager;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
         if (BluetoothDevice.ACTION_FOUND.equals(action)) {
-            // Discovery has found a device. Get the BluetoothDevice
-            // object and its info from the Intent.
+            // Discovery has found a device, remember it with its signal strength
+            BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+            short rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, Short.MIN_VALUE);
+            bluetoothClassicManager.onDeviceFound(device, rssi);
+        } else if (BluetoothDevice.ACTION_UUID.equals(action)) {
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            String deviceName = device.getName();
-            String deviceHardwareAddress = device.getAddress(); // MAC address
+            Parcelable[] uuids = intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID);
+            bluetoothClassicManager.onUuidsFound(device, uuids);
+        } else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+            bluetoothClassicManager.onDiscoveryFinished();
         }
     }
 }
@@ -245,7 +398,7 @@ class AcceptThread extends Thread {
         this.bluetoothClassicManager = bluetoothClassicManager;
         try {
             // MY_UUID is the app's UUID string, also used by the client code.
-            tmp = bluetoothClassicManager.getBluetoothAdapter().listenUsingRfcommWithServiceRecord(name, uuid);
+            tmp = bluetoothClassicManager.getBluetoothAdapter().listenUsingInsecureRfcommWithServiceRecord(name, uuid);
         } catch (IOException e) {
             Log.e("BluetoothClassic", "Socket's listen() method failed", e);
         }
@@ -276,6 +429,9 @@ class AcceptThread extends Thread {
  
     // Closes the connect socket and causes the thread to finish.
     public void cancel() {
+        if (mmServerSocket == null) {
+            return;
+        }
         try {
             mmServerSocket.close();
         } catch (IOException e) {
@@ -283,57 +439,3 @@ class AcceptThread extends Thread {
         }
     }
 }
-
-class ConnectThread extends Thread {
-    private final BluetoothSocket mmSocket;
-    private final BluetoothDevice mmDevice;
-    private BluetoothClassicManager bluetoothClassicManager;
- 
-    public ConnectThread(BluetoothDevice device, UUID uuid, BluetoothClassicManager bluetoothClassicManager) {
-        // Use a temporary object that is later assigned to mmSocket
-        // because mmSocket is final.
-        BluetoothSocket tmp = null;
-        mmDevice = device;
-        this.bluetoothClassicManager = bluetoothClassicManager;
- 
-        try {
-            // Get a BluetoothSocket to connect with the given BluetoothDevice.
-            // MY_UUID is the app's UUID string, also used in the server code.
-            tmp = device.createRfcommSocketToServiceRecord(uuid);
-        } catch (IOException e) {
-            Log.e("BluetoothClassic", "Socket's create() method failed", e);
-        }
-        mmSocket = tmp;
-    }
- 
-    public void run() {
-        try {
-            // Connect to the remote device through the socket. This call blocks
-            // until it succeeds or throws an exception.
-            mmSocket.connect();
-            Log.d("BluetoothClassic", "Socket connected");
-        } catch (IOException connectException) {
-            // Unable to connect; close the socket and return.
-            try {
-                mmSocket.close();
-            } catch (IOException closeException) {
-                Log.e("BluetoothClassic", "Could not close the client socket", closeException);
-            }
-            return;
-        }
- 
-        // The connection attempt succeeded. Perform work associated with
-        // the connection in a separate thread.
-        bluetoothClassicManager.manageBluetoothSocket(mmSocket);
-    }
- 
-    // Closes the client socket and causes the thread to finish.
-    public void cancel() {
-        try {
-            mmSocket.close();
-        } catch (IOException e) {
-            Log.e("BluetoothClassic", "Could not close the client socket", e);
-        }
-    }
- }
- 
\ No newline at end of file
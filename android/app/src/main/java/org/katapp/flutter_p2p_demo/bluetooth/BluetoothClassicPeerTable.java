@@ -0,0 +1,178 @@
+package org.katapp.flutter_p2p_demo.bluetooth;
+
+import android.bluetooth.BluetoothDevice;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Devices found by discovery, with their signal strength, when they were last seen and whether
+ * they offer our service. Devices that offer the service are the connection targets,
+ * the strongest signal first.
+ */
+class BluetoothClassicPeerTable {
+    // peers that were not seen for this long are out of range, they are forgotten
+    private static final long PEER_TIMEOUT_MS = 2 * 60 * 1000;
+    // the app may be installed on a peer while it stays in range, peers without the service are asked again
+    private static final long SERVICE_RECHECK_MS = 60 * 1000;
+
+    private final UUID serviceUuid;
+    // some stacks report SDP UUIDs with the byte order reversed, accept both
+    private final UUID reversedServiceUuid;
+
+    // guarded by this
+    private final Map<String, Peer> peers = new HashMap<>();
+
+    BluetoothClassicPeerTable(UUID serviceUuid) {
+        this.serviceUuid = serviceUuid;
+        this.reversedServiceUuid = reverse(serviceUuid);
+    }
+
+    synchronized void onDeviceFound(BluetoothDevice device, short rssi) {
+        Peer peer = peers.get(device.getAddress());
+        if (peer == null) {
+            peer = new Peer(device);
+            peers.put(device.getAddress(), peer);
+        }
+        peer.name = device.getName();
+        peer.rssi = rssi;
+        peer.lastSeen = SystemClock.elapsedRealtime();
+
+        // bonded devices and devices queried before have their UUIDs cached. The cache may be older
+        // than the app install, so only a hit is trusted, otherwise the device still gets an SDP query
+        ParcelUuid[] cachedUuids = device.getUuids();
+        if (cachedUuids != null && peer.hasService == null && containsService(cachedUuids)) {
+            peer.hasService = true;
+        }
+    }
+
+    /**
+     * Records the result of an SDP query. Without UUIDs the query failed, the services stay unknown.
+     *
+     * @return true if the device offers our service
+     */
+    synchronized boolean onUuids(BluetoothDevice device, Parcelable[] uuids) {
+        if (uuids == null) {
+            return false;
+        }
+
+        boolean hasService = containsService(uuids);
+        Peer peer = peers.get(device.getAddress());
+        if (peer != null) {
+            peer.hasService = hasService;
+            peer.serviceCheckedAt = SystemClock.elapsedRealtime();
+        }
+        return hasService;
+    }
+
+    // Seen devices whose services are not known yet or were checked a while ago, they need an SDP query
+    synchronized List<BluetoothDevice> getUnknownPeers() {
+        removeStalePeers();
+        long recheckBefore = SystemClock.elapsedRealtime() - SERVICE_RECHECK_MS;
+        List<BluetoothDevice> unknown = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            if (peer.hasService == null
+                    || (!peer.hasService && peer.serviceCheckedAt < recheckBefore)) {
+                unknown.add(peer.device);
+            }
+        }
+        return unknown;
+    }
+
+    // Seen devices that offer our service, the strongest signal first
+    synchronized List<BluetoothDevice> getConnectTargets() {
+        removeStalePeers();
+        List<Peer> targets = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            if (Boolean.TRUE.equals(peer.hasService)) {
+                targets.add(peer);
+            }
+        }
+        Collections.sort(targets, (first, second) -> Short.compare(second.rssi, first.rssi));
+
+        List<BluetoothDevice> devices = new ArrayList<>(targets.size());
+        for (Peer peer : targets) {
+            devices.add(peer.device);
+        }
+        return devices;
+    }
+
+    synchronized List<Map<String, Object>> getStats() {
+        removeStalePeers();
+        long now = SystemClock.elapsedRealtime();
+        List<Map<String, Object>> stats = new ArrayList<>();
+        for (Peer peer : peers.values()) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("address", peer.device.getAddress());
+            entry.put("name", peer.name);
+            entry.put("rssi", (int) peer.rssi);
+            entry.put("lastSeenMsAgo", now - peer.lastSeen);
+            entry.put("hasService", peer.hasService);
+            stats.add(entry);
+        }
+        return stats;
+    }
+
+    synchronized void clear() {
+        peers.clear();
+    }
+
+    private void removeStalePeers() {
+        long oldest = SystemClock.elapsedRealtime() - PEER_TIMEOUT_MS;
+        Iterator<Peer> iterator = peers.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastSeen < oldest) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private boolean containsService(Parcelable[] uuids) {
+        for (Parcelable uuid : uuids) {
+            if (uuid instanceof ParcelUuid) {
+                UUID value = ((ParcelUuid) uuid).getUuid();
+                if (serviceUuid.equals(value) || reversedServiceUuid.equals(value)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static UUID reverse(UUID uuid) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        buffer.putLong(uuid.getMostSignificantBits());
+        buffer.putLong(uuid.getLeastSignificantBits());
+        byte[] bytes = buffer.array();
+        for (int i = 0; i < bytes.length / 2; i++) {
+            byte swap = bytes[i];
+            bytes[i] = bytes[bytes.length - 1 - i];
+            bytes[bytes.length - 1 - i] = swap;
+        }
+        ByteBuffer reversed = ByteBuffer.wrap(bytes);
+        return new UUID(reversed.getLong(), reversed.getLong());
+    }
+
+    private static class Peer {
+        final BluetoothDevice device;
+        String name;
+        short rssi;
+        long lastSeen;
+        // null until the services of the device are known
+        Boolean hasService;
+        long serviceCheckedAt;
+
+        Peer(BluetoothDevice device) {
+            this.device = device;
+        }
+    }
+}
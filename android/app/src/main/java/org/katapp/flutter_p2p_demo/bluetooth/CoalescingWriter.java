@@ -0,0 +1,209 @@
+package org.katapp.flutter_p2p_demo.bluetooth;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.katapp.flutter_p2p_demo.message.FrameCodec;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+
+/**
+ * The only writer of an RFCOMM stream.
+ *
+ * Frames are queued and written in order by one dedicated thread. Small frames that are queued together
+ * are copied into one buffer and written with a single call, so the per write overhead of the link is
+ * paid once for several messages. A write never grows beyond the size budget, and the writer waits at
+ * most the delay budget for more frames before it writes what it has.
+ */
+class CoalescingWriter {
+    static final int DEFAULT_MAX_WRITE_SIZE = 8 * 1024;
+    // only frames that are already queued are coalesced, no latency is added
+    static final int DEFAULT_MAX_DELAY_MS = 0;
+
+    private static final int MAX_QUEUED_FRAMES = 64;
+
+    private final OutputStream outputStream;
+    private final String name;
+    private final Runnable onError;
+    private final TransportStats[] stats;
+
+    // guarded by this
+    private final ArrayDeque<byte[]> queue = new ArrayDeque<>();
+    private int queuedBytes = 0;
+    private boolean closed = false;
+    private int maxWriteSize = DEFAULT_MAX_WRITE_SIZE;
+    private int maxDelayMs = DEFAULT_MAX_DELAY_MS;
+
+    private long writes = 0;
+    private long framesWritten = 0;
+    private long bytesWritten = 0;
+    private long writeNanos = 0;
+
+    // sizes of the frames in the current write, only used by the writer thread
+    private int[] batchSizes = new int[16];
+    private int batchFrames = 0;
+
+    private Thread writerThread;
+
+    /**
+     * @param onError called on the writer thread if a write fails, the writer stops afterwards
+     * @param stats counters that every written frame is reported to
+     */
+    CoalescingWriter(OutputStream outputStream, String name, Runnable onError, TransportStats... stats) {
+        this.outputStream = outputStream;
+        this.name = name;
+        this.onError = onError;
+        this.stats = stats;
+    }
+
+    void start() {
+        writerThread = new Thread(this::run, "classic-writer-" + name);
+        writerThread.start();
+    }
+
+    synchronized void setBudget(int maxWriteSize, int maxDelayMs) {
+        this.maxWriteSize = Math.max(1, maxWriteSize);
+        this.maxDelayMs = Math.max(0, maxDelayMs);
+        notifyAll();
+    }
+
+    // Queues a frame, returns false if the writer is closed or too many frames are pending
+    synchronized boolean offer(byte[] frame) {
+        if (closed || queue.size() >= MAX_QUEUED_FRAMES) {
+            return false;
+        }
+        queue.add(frame);
+        queuedBytes += frame.length;
+        notifyAll();
+        return true;
+    }
+
+    synchronized void close() {
+        closed = true;
+        queue.clear();
+        queuedBytes = 0;
+        notifyAll();
+    }
+
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> writerStats = new HashMap<>();
+        writerStats.put("queuedFrames", queue.size());
+        writerStats.put("queuedBytes", queuedBytes);
+        writerStats.put("writes", writes);
+        writerStats.put("framesWritten", framesWritten);
+        writerStats.put("framesPerWrite", writes == 0 ? 0 : (double) framesWritten / writes);
+        writerStats.put("bytesPerSecond", writeNanos == 0 ? 0 : bytesWritten * 1e9 / writeNanos);
+        writerStats.put("maxWriteSize", maxWriteSize);
+        writerStats.put("maxDelayMs", maxDelayMs);
+        return writerStats;
+    }
+
+    private void run() {
+        byte[] buffer = new byte[0];
+
+        try {
+            while (true) {
+                byte[] data;
+                int length;
+
+                synchronized (this) {
+                    while (queue.isEmpty() && !closed) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+
+                    // the budget can change while the batch waits, the batch keeps the size it started with
+                    int batchMaxSize = maxWriteSize;
+                    batchFrames = 0;
+                    byte[] first = poll();
+                    if (first.length >= batchMaxSize || (queue.isEmpty() && maxDelayMs == 0)) {
+                        // nothing to coalesce with, write the frame as it is
+                        data = first;
+                        length = first.length;
+                    } else {
+                        if (buffer.length < batchMaxSize) {
+                            buffer = new byte[batchMaxSize];
+                        }
+                        System.arraycopy(first, 0, buffer, 0, first.length);
+                        length = first.length;
+
+                        long deadline = System.nanoTime() + maxDelayMs * 1_000_000L;
+                        while (!closed) {
+                            byte[] next = queue.peek();
+                            if (next != null) {
+                                if (length + next.length > batchMaxSize) {
+                                    break;
+                                }
+                                poll();
+                                System.arraycopy(next, 0, buffer, length, next.length);
+                                length += next.length;
+                                continue;
+                            }
+
+                            long remainingMs = (deadline - System.nanoTime()) / 1_000_000L;
+                            if (remainingMs <= 0) {
+                                break;
+                            }
+                            wait(remainingMs);
+                        }
+                        data = buffer;
+                    }
+                }
+
+                write(data, length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            if (!isClosed()) {
+                for (TransportStats counter : stats) {
+                    counter.onSendError();
+                }
+                Log.e("BluetoothClassic", "Error writing to " + name + ": " + e.getMessage());
+                onError.run();
+            }
+        }
+    }
+
+    private byte[] poll() {
+        byte[] frame = queue.poll();
+        queuedBytes -= frame.length;
+
+        if (batchFrames == batchSizes.length) {
+            batchSizes = Arrays.copyOf(batchSizes, batchSizes.length * 2);
+        }
+        batchSizes[batchFrames++] = frame.length;
+        return frame;
+    }
+
+    private void write(byte[] data, int length) throws IOException {
+        long start = System.nanoTime();
+        outputStream.write(data, 0, length);
+        outputStream.flush();
+        long duration = System.nanoTime() - start;
+
+        synchronized (this) {
+            writes++;
+            framesWritten += batchFrames;
+            bytesWritten += length;
+            writeNanos += duration;
+        }
+        // the stats count payload bytes, like the receive side
+        for (TransportStats counter : stats) {
+            for (int i = 0; i < batchFrames; i++) {
+                counter.onMessageSent(batchSizes[i] - FrameCodec.HEADER_SIZE);
+            }
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+}
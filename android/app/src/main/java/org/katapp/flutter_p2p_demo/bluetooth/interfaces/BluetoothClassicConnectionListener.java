@@ -1,5 +0,0 @@
-package org.katapp.flutter_p2p_demo.bluetooth.interfaces;
-
-public interface BluetoothClassicConnectionListener {
-    void onConnectionStateChanged(boolean isConnected);
-}
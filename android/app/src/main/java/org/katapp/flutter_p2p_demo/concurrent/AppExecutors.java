@@ -0,0 +1,40 @@
+package org.katapp.flutter_p2p_demo.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Shared thread pools of the app.
+ *
+ * CPU bound work (creating, parsing and serializing messages) and blocking I/O (socket writes)
+ * run on separate pools, so slow links can not starve message processing and the other way around.
+ * Long running connection loops (accept and read) keep their own threads.
+ */
+public final class AppExecutors {
+    private static final int CPU_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int CPU_QUEUE_CAPACITY = 256;
+
+    private static final int IO_THREADS = 8;
+    private static final int IO_QUEUE_CAPACITY = 512;
+
+    private static final BoundedExecutor cpu = new BoundedExecutor("p2p-cpu", CPU_THREADS, CPU_QUEUE_CAPACITY);
+    private static final BoundedExecutor io = new BoundedExecutor("p2p-io", IO_THREADS, IO_QUEUE_CAPACITY);
+
+    private AppExecutors() {
+    }
+
+    public static BoundedExecutor cpu() {
+        return cpu;
+    }
+
+    public static BoundedExecutor io() {
+        return io;
+    }
+
+    public static Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("cpu", cpu.getStats());
+        stats.put("io", io.getStats());
+        return stats;
+    }
+}
@@ -0,0 +1,88 @@
+package org.katapp.flutter_p2p_demo.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool with a fixed number of named threads and a bounded queue.
+ *
+ * When all threads are busy and the queue is full new tasks are rejected instead of
+ * piling up in memory. Rejections are counted so they show up in the stats.
+ */
+public class BoundedExecutor implements Executor {
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    public BoundedExecutor(String name, int threads, int queueCapacity) {
+        this.name = name;
+
+        ThreadFactory threadFactory = new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name + "-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+
+        executor = new ThreadPoolExecutor(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), threadFactory, (task, pool) -> {
+                    rejectedCount.incrementAndGet();
+                    throw new RejectedExecutionException(name + " executor is saturated");
+                });
+        // idle threads are released, the pool only holds threads while there is work
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @throws RejectedExecutionException if all threads are busy and the queue is full
+     */
+    @Override
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    // Same as execute, but reports a rejection through the return value
+    public boolean tryExecute(Runnable task) {
+        try {
+            executor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("name", name);
+        stats.put("threads", executor.getPoolSize());
+        stats.put("maxThreads", executor.getMaximumPoolSize());
+        stats.put("activeTasks", executor.getActiveCount());
+        stats.put("queuedTasks", executor.getQueue().size());
+        stats.put("queueCapacity", executor.getQueue().size() + executor.getQueue().remainingCapacity());
+        stats.put("completedTasks", executor.getCompletedTaskCount());
+        stats.put("rejectedTasks", rejectedCount.get());
+        return stats;
+    }
+}
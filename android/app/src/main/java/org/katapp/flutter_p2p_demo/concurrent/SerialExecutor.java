@@ -0,0 +1,90 @@
+package org.katapp.flutter_p2p_demo.concurrent;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks one after another, in submission order, on a shared executor.
+ *
+ * Used for writes to a single connection: the tasks borrow a pool thread instead of
+ * owning one, but frames written to the same stream never interleave. Once a task runs,
+ * the tasks queued behind it are never dropped, if the shared executor is saturated they
+ * run on the thread of the previous task.
+ */
+public class SerialExecutor implements Executor {
+    private final Executor executor;
+    private final int maxPendingTasks;
+    private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    private Runnable active;
+
+    public SerialExecutor(Executor executor, int maxPendingTasks) {
+        this.executor = executor;
+        this.maxPendingTasks = maxPendingTasks;
+    }
+
+    /**
+     * @throws RejectedExecutionException if too many tasks are pending or the shared executor is saturated
+     */
+    @Override
+    public synchronized void execute(Runnable task) {
+        if (tasks.size() >= maxPendingTasks) {
+            throw new RejectedExecutionException("Too many pending tasks");
+        }
+
+        tasks.add(() -> {
+            try {
+                task.run();
+            } finally {
+                scheduleNextAfterTask();
+            }
+        });
+
+        if (active == null) {
+            try {
+                scheduleNext();
+            } catch (RejectedExecutionException e) {
+                // the task could not be started, forget it so later tasks are not blocked
+                tasks.clear();
+                throw e;
+            }
+        }
+    }
+
+    public synchronized int getPendingTasks() {
+        return tasks.size();
+    }
+
+    private void scheduleNextAfterTask() {
+        Runnable next;
+        synchronized (this) {
+            try {
+                scheduleNext();
+                return;
+            } catch (RejectedExecutionException e) {
+                // the shared executor is saturated, the queued tasks must not be lost
+                next = tasks.poll();
+                active = next;
+            }
+        }
+
+        // keep the pool thread of the finished task for the next one, the order stays the same
+        if (next != null) {
+            next.run();
+        }
+    }
+
+    private synchronized void scheduleNext() {
+        active = tasks.poll();
+        if (active != null) {
+            try {
+                executor.execute(active);
+            } catch (RejectedExecutionException e) {
+                // back to the head of the queue, the caller decides what happens to it
+                tasks.addFirst(active);
+                active = null;
+                throw e;
+            }
+        }
+    }
+}
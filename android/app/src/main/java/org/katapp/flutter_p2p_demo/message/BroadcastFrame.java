@@ -0,0 +1,152 @@
+package org.katapp.flutter_p2p_demo.message;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An encoded frame that is sent to many peers.
+ *
+ * The frame is encoded once into a direct buffer and every peer reads it through its own view,
+ * so fanning out a large message does not copy it per peer. The content never changes after encoding.
+ *
+ * The frame is reference counted: the creator holds the first reference, every peer queue that keeps
+ * the frame calls {@link #retain()} and {@link #release()} once it is written or dropped. When the last
+ * reference is released the buffer goes back to a small pool and is reused for the next frame.
+ */
+public final class BroadcastFrame {
+    private static final int MAX_POOLED_BUFFERS = 4;
+    private static final int MAX_POOLED_CAPACITY = 8 * 1024 * 1024;
+    private static final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+    private final ByteBuffer buffer;
+    private final int length;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private BroadcastFrame(ByteBuffer buffer, int length) {
+        this.buffer = buffer;
+        this.length = length;
+    }
+
+    public static BroadcastFrame encode(byte type, byte flags, byte[] payload) {
+        int length = FrameCodec.HEADER_SIZE + payload.length;
+        ByteBuffer buffer = acquireBuffer(length);
+        FrameCodec.writeHeader(buffer, type, flags, payload.length);
+        buffer.put(payload);
+        return new BroadcastFrame(buffer, length);
+    }
+
+    // The JSON is encoded straight into the pooled buffer, without an intermediate byte array
+    public static BroadcastFrame encodeMessage(String messageJson) {
+        int payloadLength = FrameCodec.utf8Length(messageJson);
+        int length = FrameCodec.HEADER_SIZE + payloadLength;
+        ByteBuffer buffer = acquireBuffer(length);
+        FrameCodec.writeHeader(buffer, FrameCodec.TYPE_MESSAGE, FrameCodec.FLAG_NONE, payloadLength);
+        FrameCodec.encodeUtf8(messageJson, buffer);
+        return new BroadcastFrame(buffer, length);
+    }
+
+    // Length of the whole frame including the header
+    public int length() {
+        return length;
+    }
+
+    // Length of the payload only, the size the transport stats count
+    public int payloadLength() {
+        return length - FrameCodec.HEADER_SIZE;
+    }
+
+    /**
+     * A read only view of the whole frame with its own position, for writing the frame to a channel.
+     */
+    public ByteBuffer view() {
+        checkNotReleased();
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        view.clear();
+        view.limit(length);
+        return view;
+    }
+
+    // Copies a part of the frame, for APIs that only take arrays
+    public void copyTo(int offset, byte[] destination, int destinationOffset, int count) {
+        checkNotReleased();
+        ByteBuffer view = buffer.duplicate();
+        view.clear();
+        view.position(offset);
+        view.get(destination, destinationOffset, count);
+    }
+
+    public BroadcastFrame retain() {
+        int count;
+        do {
+            count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame was already released");
+            }
+        } while (!refCount.compareAndSet(count, count + 1));
+        return this;
+    }
+
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            releaseBuffer(buffer);
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame was released too often");
+        }
+    }
+
+    private void checkNotReleased() {
+        if (refCount.get() <= 0) {
+            throw new IllegalStateException("Frame was already released");
+        }
+    }
+
+    // Smallest pooled buffer that fits, pooled buffers are compared by identity, equals compares content
+    private static synchronized ByteBuffer acquireBuffer(int length) {
+        ByteBuffer best = null;
+        for (ByteBuffer pooled : pool) {
+            if (pooled.capacity() >= length && (best == null || pooled.capacity() < best.capacity())) {
+                best = pooled;
+            }
+        }
+        if (best == null) {
+            return ByteBuffer.allocateDirect(length);
+        }
+
+        removeFromPool(best);
+        best.clear();
+        return best;
+    }
+
+    private static synchronized void releaseBuffer(ByteBuffer buffer) {
+        if (buffer.capacity() > MAX_POOLED_CAPACITY) {
+            return;
+        }
+        if (pool.size() >= MAX_POOLED_BUFFERS) {
+            // keep the larger buffers, they are the expensive ones to allocate
+            ByteBuffer smallest = buffer;
+            for (ByteBuffer pooled : pool) {
+                if (pooled.capacity() < smallest.capacity()) {
+                    smallest = pooled;
+                }
+            }
+            if (smallest == buffer) {
+                return;
+            }
+            removeFromPool(smallest);
+        }
+        pool.add(buffer);
+    }
+
+    private static void removeFromPool(ByteBuffer buffer) {
+        Iterator<ByteBuffer> iterator = pool.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() == buffer) {
+                iterator.remove();
+                return;
+            }
+        }
+    }
+}
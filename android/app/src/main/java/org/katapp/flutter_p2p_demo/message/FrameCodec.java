@@ -0,0 +1,117 @@
+package org.katapp.flutter_p2p_demo.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary framing shared by all transports.
+ *
+ * Every frame starts with a fixed 7 byte header followed by the payload:
+ * <pre>
+ * | length (int32, big endian) | version (1) | type (1) | flags (1) | payload (length bytes) |
+ * </pre>
+ * The length only counts the payload, so a receiver knows after reading the header
+ * exactly how many bytes belong to the frame and never has to scan for a delimiter.
+ */
+public final class FrameCodec {
+    public static final int HEADER_SIZE = 7;
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_MESSAGE = 1;
+
+    public static final byte FLAG_NONE = 0;
+
+    // Upper bound to detect corrupted streams before allocating huge buffers
+    public static final int MAX_PAYLOAD_SIZE = 64 * 1024 * 1024;
+
+    private FrameCodec() {
+    }
+
+    public static byte[] encode(byte type, byte flags, byte[] payload) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        writeHeader(buffer, type, flags, payload.length);
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    // The JSON is encoded straight into the frame, without an intermediate byte array
+    public static byte[] encodeMessage(String messageJson) {
+        int payloadLength = utf8Length(messageJson);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payloadLength);
+        writeHeader(buffer, TYPE_MESSAGE, FLAG_NONE, payloadLength);
+        encodeUtf8(messageJson, buffer);
+        return buffer.array();
+    }
+
+    // Number of bytes the string takes as UTF-8, the same as getBytes would return, without encoding it
+    static int utf8Length(String value) {
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // a lone surrogate is replaced by '?'
+                length++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    // Encodes the string into the buffer, which must have utf8Length bytes left
+    static void encodeUtf8(String value, ByteBuffer buffer) {
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        try {
+            CoderResult result = encoder.encode(CharBuffer.wrap(value), buffer, true);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+            result = encoder.flush(buffer);
+            if (!result.isUnderflow()) {
+                result.throwException();
+            }
+        } catch (CharacterCodingException e) {
+            // the buffer was sized with utf8Length and malformed input is replaced
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Message frames carry the JSON representation of a Message as UTF-8
+    public static String decodeString(byte[] data, int offset, int length) {
+        return new String(data, offset, length, StandardCharsets.UTF_8);
+    }
+
+    public static void writeHeader(ByteBuffer buffer, byte type, byte flags, int payloadLength) {
+        buffer.putInt(payloadLength);
+        buffer.put(VERSION);
+        buffer.put(type);
+        buffer.put(flags);
+    }
+
+    static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_PAYLOAD_SIZE) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+    }
+
+    static void checkVersion(byte version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported frame version: " + version);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.katapp.flutter_p2p_demo.message;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.katapp.flutter_p2p_demo.message.interfaces.FrameListener;
+
+/**
+ * Incremental decoder for the {@link FrameCodec} wire format.
+ *
+ * Incoming bytes are appended to a single reusable buffer. Only the header of the frame
+ * currently being assembled is inspected, so every byte is looked at once no matter how
+ * small the reads are. Complete frames are handed to the listener as a view into the buffer.
+ * The buffer only grows when a frame does not fit, after that reads do not allocate.
+ *
+ * Not thread safe, use one decoder per connection.
+ */
+public class FrameDecoder {
+    public static final int DEFAULT_CAPACITY = 8 * 1024;
+    // socket readers start larger, a single read can then take what the radio delivered since the last one
+    public static final int DEFAULT_STREAM_CAPACITY = 64 * 1024;
+    public static final int MIN_READ_SIZE = 1024;
+
+    private final FrameListener listener;
+    private final int initialCapacity;
+
+    private ByteBuffer buffer;
+    // bytes between readIndex and writeIndex have been received but not decoded yet
+    private int readIndex = 0;
+    private int writeIndex = 0;
+
+    public FrameDecoder(FrameListener listener) {
+        this(DEFAULT_CAPACITY, listener);
+    }
+
+    public FrameDecoder(int initialCapacity, FrameListener listener) {
+        this.listener = listener;
+        this.initialCapacity = Math.max(initialCapacity, FrameCodec.HEADER_SIZE);
+        this.buffer = ByteBuffer.allocate(this.initialCapacity);
+    }
+
+    /**
+     * Copies the given bytes into the decoder and emits all frames completed by them.
+     */
+    public void feed(byte[] data, int offset, int length) throws IOException {
+        ensureWritable(length);
+        System.arraycopy(data, offset, buffer.array(), writeIndex, length);
+        writeIndex += length;
+        decode();
+    }
+
+    /**
+     * Performs a single blocking read from the stream directly into the decoder buffer
+     * and emits all frames completed by it.
+     *
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int readFrom(InputStream in) throws IOException {
+        ensureWritable(MIN_READ_SIZE);
+        int bytesRead = in.read(buffer.array(), writeIndex, buffer.capacity() - writeIndex);
+        if (bytesRead > 0) {
+            writeIndex += bytesRead;
+            decode();
+        }
+        return bytesRead;
+    }
+
+    // Drops buffered data and shrinks the buffer if a large frame made it grow
+    public void reset() {
+        readIndex = 0;
+        writeIndex = 0;
+        if (buffer.capacity() > initialCapacity) {
+            buffer = ByteBuffer.allocate(initialCapacity);
+        }
+    }
+
+    public int getBufferedBytes() {
+        return writeIndex - readIndex;
+    }
+
+    private void decode() throws IOException {
+        while (writeIndex - readIndex >= FrameCodec.HEADER_SIZE) {
+            int length = buffer.getInt(readIndex);
+            FrameCodec.checkLength(length);
+            FrameCodec.checkVersion(buffer.get(readIndex + 4));
+
+            int frameSize = FrameCodec.HEADER_SIZE + length;
+            if (writeIndex - readIndex < frameSize) {
+                // make room for the whole frame once, instead of growing on every read.
+                // The extra read size keeps readFrom from moving the frame again near its end
+                ensureCapacity(frameSize + MIN_READ_SIZE);
+                break;
+            }
+
+            byte type = buffer.get(readIndex + 5);
+            byte flags = buffer.get(readIndex + 6);
+            int payloadOffset = readIndex + FrameCodec.HEADER_SIZE;
+            readIndex += frameSize;
+
+            listener.onFrame(type, flags, buffer.array(), payloadOffset, length);
+        }
+
+        if (readIndex == writeIndex) {
+            readIndex = 0;
+            writeIndex = 0;
+        }
+    }
+
+    // Makes sure the given amount of bytes fits into the buffer starting at readIndex
+    private void ensureCapacity(int size) {
+        if (buffer.capacity() - readIndex >= size) {
+            return;
+        }
+        moveToFront(Math.max(size, buffer.capacity()));
+    }
+
+    private void ensureWritable(int length) {
+        if (buffer.capacity() - writeIndex >= length) {
+            return;
+        }
+
+        int buffered = writeIndex - readIndex;
+        if (buffer.capacity() - buffered >= length) {
+            moveToFront(buffer.capacity());
+        } else {
+            moveToFront(Math.max(buffer.capacity() * 2, buffered + length));
+        }
+    }
+
+    // Moves the undecoded bytes to the start of a buffer with the given capacity
+    private void moveToFront(int capacity) {
+        int buffered = writeIndex - readIndex;
+        if (capacity != buffer.capacity()) {
+            ByteBuffer grown = ByteBuffer.allocate(capacity);
+            System.arraycopy(buffer.array(), readIndex, grown.array(), 0, buffered);
+            buffer = grown;
+        } else if (readIndex > 0) {
+            System.arraycopy(buffer.array(), readIndex, buffer.array(), 0, buffered);
+        }
+        readIndex = 0;
+        writeIndex = buffered;
+    }
+}
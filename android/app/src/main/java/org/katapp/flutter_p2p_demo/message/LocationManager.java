@@ -1,74 +1,170 @@
 package org.katapp.flutter_p2p_demo.message;
 
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationCallback;
 import com.google.android.gms.location.LocationRequest;
-import com.google.android.gms.tasks.OnSuccessListener;
+import com.google.android.gms.location.LocationResult;
+import com.google.android.gms.location.Priority;
+import com.google.android.gms.tasks.Task;
+import com.google.android.gms.tasks.TaskCompletionSource;
+import com.google.android.gms.tasks.Tasks;
 import android.location.Location;
-import org.json.JSONObject;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 
+/**
+ * Keeps the latest location fix while location is enabled.
+ *
+ * A continuous subscription updates the cached fix in the background, so stamping a message
+ * only reads the cache and never waits for the GPS. Fixes older than the max age are not handed out.
+ */
 public class LocationManager {
-    private static Location currentLocation;
+    public static final long DEFAULT_MAX_LOCATION_AGE_MS = 10_000;
+    private static final long UPDATE_INTERVAL_MS = 1_000;
+
+    private static volatile Location cachedLocation;
+    private static volatile long maxLocationAgeMs = DEFAULT_MAX_LOCATION_AGE_MS;
     private static FusedLocationProviderClient fusedLocationClient;
-    private static boolean locationEnabled = false;
+    private static volatile boolean locationEnabled = false;
+    private static boolean receivingUpdates = false;
+    // a single fix request shared by everyone asking while the cache is stale
+    private static TaskCompletionSource<Location> pendingFix;
+
+    private static final LocationCallback locationCallback = new LocationCallback() {
+        @Override
+        public void onLocationResult(LocationResult locationResult) {
+            updateCachedLocation(locationResult.getLastLocation());
+        }
+    };
 
     public static boolean isLocationEnabled() {
         return locationEnabled;
     }
 
-    public static void setLocationEnabled(boolean newLocationEnabled) {
+    public static synchronized void setLocationEnabled(boolean newLocationEnabled) {
         locationEnabled = newLocationEnabled;
+        if (locationEnabled) {
+            startLocationUpdates();
+        } else {
+            stopLocationUpdates();
+        }
     }
 
     public static void setFusedLocationClient(FusedLocationProviderClient newFusedLocationClient) {
         fusedLocationClient = newFusedLocationClient;
     }
 
-    public static Location getCurrentLocation() throws InterruptedException {
+    public static long getMaxLocationAge() {
+        return maxLocationAgeMs;
+    }
+
+    public static void setMaxLocationAge(long newMaxLocationAgeMs) {
+        maxLocationAgeMs = newMaxLocationAgeMs;
+    }
+
+    /**
+     * Returns the cached fix if it is not older than the max age, otherwise null. Never blocks.
+     */
+    public static Location getCachedLocation() {
         if (!locationEnabled) {
             return null;
         }
 
-        final CountDownLatch latch = new CountDownLatch(1);
-
-        fusedLocationClient.getCurrentLocation(LocationRequest.PRIORITY_HIGH_ACCURACY, null)
-            .addOnSuccessListener(new OnSuccessListener<Location>() {
-                @Override
-                public void onSuccess(Location location) {
-                    if (location != null) {
-                        currentLocation = location;
-                    }
-                    latch.countDown();  // Notify that the location has been fetched
-                }
-            });
-
-        latch.await();  // Wait here until the onSuccess callback is called
-        return currentLocation;  // Return the fetched location
+        Location location = cachedLocation;
+        return isFresh(location) ? location : null;
     }
 
-    public static Location getLastKnownLocation() throws InterruptedException {
-        if (!locationEnabled) {
-            return null;
+    /**
+     * Completes with the cached fix right away if it is fresh, otherwise with the next fix
+     * delivered by the location provider. Completes with null if location is disabled.
+     */
+    public static synchronized Task<Location> getLocationAsync() {
+        Location location = getCachedLocation();
+        if (location != null || !locationEnabled || fusedLocationClient == null) {
+            return Tasks.forResult(location);
+        }
+
+        if (pendingFix != null) {
+            return pendingFix.getTask();
         }
 
-        final CountDownLatch latch = new CountDownLatch(1);
-
-        fusedLocationClient.getLastLocation()
-            .addOnSuccessListener(new OnSuccessListener<Location>() {
-                @Override
-                public void onSuccess(Location location) {
-                    if (location != null) {
-                        currentLocation = location;
-                    }
-                    latch.countDown();  // Notify that the location has been fetched
-                }
-            });
-
-        latch.await();  // Wait here until the onSuccess callback is called
-        return currentLocation;  // Return the fetched location
+        TaskCompletionSource<Location> fix = new TaskCompletionSource<>();
+        pendingFix = fix;
+        try {
+            fusedLocationClient.getCurrentLocation(Priority.PRIORITY_HIGH_ACCURACY, null)
+                .addOnSuccessListener(newLocation -> {
+                    updateCachedLocation(newLocation);
+                    completePendingFix(fix, newLocation != null ? newLocation : cachedLocation);
+                })
+                .addOnFailureListener(e -> {
+                    Log.d("LocationManager", "Failed to get current location", e);
+                    completePendingFix(fix, cachedLocation);
+                });
+        } catch (SecurityException e) {
+            Log.d("LocationManager", "Location permission missing", e);
+            completePendingFix(fix, null);
+        }
+        return fix.getTask();
     }
 
     public static float distanceBetweenLocations(Location location1, Location location2) {
         return location1.distanceTo(location2);
     }
-}
\ No newline at end of file
+
+    private static synchronized void completePendingFix(TaskCompletionSource<Location> fix, Location location) {
+        if (pendingFix == fix) {
+            pendingFix = null;
+        }
+        fix.trySetResult(location);
+    }
+
+    private static void updateCachedLocation(Location location) {
+        if (location == null) {
+            return;
+        }
+
+        Location current = cachedLocation;
+        if (current == null || location.getElapsedRealtimeNanos() >= current.getElapsedRealtimeNanos()) {
+            cachedLocation = location;
+        }
+    }
+
+    private static boolean isFresh(Location location) {
+        if (location == null) {
+            return false;
+        }
+        long ageNanos = SystemClock.elapsedRealtimeNanos() - location.getElapsedRealtimeNanos();
+        return ageNanos <= TimeUnit.MILLISECONDS.toNanos(maxLocationAgeMs);
+    }
+
+    private static void startLocationUpdates() {
+        if (receivingUpdates || fusedLocationClient == null) {
+            return;
+        }
+
+        LocationRequest request = new LocationRequest.Builder(Priority.PRIORITY_HIGH_ACCURACY, UPDATE_INTERVAL_MS)
+            .setMinUpdateIntervalMillis(UPDATE_INTERVAL_MS / 2)
+            .build();
+
+        try {
+            // seed the cache so the first messages do not have to wait for the first update
+            fusedLocationClient.getLastLocation().addOnSuccessListener(LocationManager::updateCachedLocation);
+            fusedLocationClient.requestLocationUpdates(request, locationCallback, Looper.getMainLooper());
+            receivingUpdates = true;
+        } catch (SecurityException e) {
+            Log.d("LocationManager", "Location permission missing", e);
+        }
+    }
+
+    private static void stopLocationUpdates() {
+        if (!receivingUpdates) {
+            return;
+        }
+
+        fusedLocationClient.removeLocationUpdates(locationCallback);
+        receivingUpdates = false;
+        cachedLocation = null;
+    }
+}
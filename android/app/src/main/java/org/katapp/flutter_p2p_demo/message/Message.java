@@ -1,8 +1,11 @@
 package org.katapp.flutter_p2p_demo.message;
 
 import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
 import java.util.UUID;
 
@@ -30,7 +33,8 @@ public class Message {
 
     // This is used to achieve a certain message size for transfer speed testing
     // After the message is received, the receiver will check the size of the total JSON String received and assume each character is 1 byte
-    private String dataToAchieveMessageSize;
+    // Only the size is kept, the padding itself is generated by Padding when the message is serialized
+    private int dataToAchieveMessageSize;
 
     // Used to calculate the distance between the sender and receiver
     private Location sentLocation;
@@ -38,43 +42,42 @@ public class Message {
 
     private float distanceBetweenLocations;
 
+    // Serialization buffer per thread, reused so serializing large messages does not allocate a new buffer each time
+    private static final int MAX_POOLED_JSON_BUFFER_SIZE = 16 * 1024 * 1024;
+    private static final ThreadLocal<ByteArrayOutputStream> jsonBuffer = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(8 * 1024);
+        }
+    };
+
     public Message(int size) {
         this.id = idCounter++;
 
-        // create a string of size 'size' to achieve the desired message size for transfer speed testing
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < size; i++) {
-            sb.append("a");
-        }
-        dataToAchieveMessageSize = sb.toString();
+        // padding of size 'size' to achieve the desired message size for transfer speed testing
+        dataToAchieveMessageSize = size;
     }
 
-    public Message(String json) {
-        try {
-            JSONObject jsonObject = new JSONObject(json);
-            this.id = jsonObject.getInt("id");
-            this.sender = jsonObject.getString("sender");
-            this.timeSent = new Date(jsonObject.getLong("timeSent"));
-            if (!jsonObject.isNull("timeReceived")) {
-                this.timeReceived = new Date(jsonObject.getLong("timeReceived"));
-            }
-            this.dataToAchieveMessageSize = jsonObject.getString("dataToAchieveMessageSize");
-            if (!jsonObject.isNull("sentLocation")) {
-                JSONObject sentLocationJson = jsonObject.getJSONObject("sentLocation");
-                this.sentLocation = new Location("");
-                this.sentLocation.setLatitude(sentLocationJson.getDouble("latitude"));
-                this.sentLocation.setLongitude(sentLocationJson.getDouble("longitude"));
-            }
-            if (!jsonObject.isNull("receivedLocation")) {
-                JSONObject receivedLocationJson = jsonObject.getJSONObject("receivedLocation");
-                this.receivedLocation = new Location("");
-                this.receivedLocation.setLatitude(receivedLocationJson.getDouble("latitude"));
-                this.receivedLocation.setLongitude(receivedLocationJson.getDouble("longitude"));
-            }
-            this.distanceBetweenLocations = (float) jsonObject.getDouble("distanceBetweenLocations");
-        } catch (JSONException e) {
-            e.printStackTrace();
-        }
+    Message(int id, String sender, Date timeSent, Date timeReceived, int dataToAchieveMessageSize,
+            Location sentLocation, Location receivedLocation, float distanceBetweenLocations) {
+        this.id = id;
+        this.sender = sender;
+        this.timeSent = timeSent;
+        this.timeReceived = timeReceived;
+        this.dataToAchieveMessageSize = dataToAchieveMessageSize;
+        this.sentLocation = sentLocation;
+        this.receivedLocation = receivedLocation;
+        this.distanceBetweenLocations = distanceBetweenLocations;
+    }
+
+    public static Message fromJson(String json) throws JSONException {
+        byte[] data = json.getBytes(StandardCharsets.UTF_8);
+        return fromJson(data, 0, data.length);
+    }
+
+    // Parses the UTF-8 JSON of a message directly, e.g. from the payload of a received frame
+    public static Message fromJson(byte[] data, int offset, int length) throws JSONException {
+        return MessageJsonReader.read(data, offset, length);
     }
 
     public int getId() {
@@ -85,6 +88,10 @@ public class Message {
         return sender;
     }
 
+    public int getDataToAchieveMessageSize() {
+        return dataToAchieveMessageSize;
+    }
+
     public static String getSenderRandom() {
         return senderRandom;
     }
@@ -113,25 +120,31 @@ public class Message {
         return receivedLocation;
     }
 
+    // Uses the cached fix of the LocationManager, stamping a message never waits for the GPS
     public void setSentLocationAsCurrent() {
-        try {
-            Location location = LocationManager.getCurrentLocation();
-            if (location != null) {
-                sentLocation = location;
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        setSentLocation(LocationManager.getCachedLocation());
+    }
+
+    // A missing fix keeps the previous sent location
+    public void setSentLocation(Location location) {
+        if (location != null) {
+            sentLocation = location;
         }
     }
 
     public void setReceivedLocationAsCurrent() {
-        try {
-            Location location = LocationManager.getCurrentLocation();
-            if (location != null) {
-                receivedLocation = location;
-            }
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        setReceivedLocation(LocationManager.getCachedLocation());
+    }
+
+    // Used to stamp a whole batch of received messages with the same time and location
+    public void setReceivedData(Date timeReceived, Location location) {
+        this.timeReceived = timeReceived;
+        setReceivedLocation(location);
+    }
+
+    private void setReceivedLocation(Location location) {
+        if (location != null) {
+            receivedLocation = location;
         }
 
         if (sentLocation != null && receivedLocation != null) {
@@ -139,25 +152,100 @@ public class Message {
         }
     }
 
-    public JSONObject toJson() {
-        JSONObject jsonObject = new JSONObject();
+    public boolean isFromThisDevice() {
+        return sender.equals(android.os.Build.MODEL + " :: " + senderRandom);
+    }
+
+    /**
+     * Writes the JSON of the message as UTF-8 to the stream, without building a JSONObject.
+     * The padding is copied from the shared Padding pattern straight into the stream.
+     */
+    public void writeJson(OutputStream out) throws IOException {
+        StringBuilder json = new StringBuilder(256);
+        json.append("{\"id\":").append(id);
+        json.append(",\"sender\":");
+        appendJsonString(json, sender);
+        json.append(",\"timeSent\":").append(timeSent == null ? "null" : String.valueOf(timeSent.getTime()));
+        json.append(",\"timeReceived\":").append(timeReceived == null ? "null" : String.valueOf(timeReceived.getTime()));
+        json.append(",\"dataToAchieveMessageSize\":\"");
+        out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+
+        Padding.writeTo(out, dataToAchieveMessageSize);
+
+        json.setLength(0);
+        json.append('"');
+        json.append(",\"sentLocation\":");
+        appendJsonLocation(json, sentLocation);
+        json.append(",\"receivedLocation\":");
+        appendJsonLocation(json, receivedLocation);
+        json.append(",\"distanceBetweenLocations\":");
+        appendJsonNumber(json, distanceBetweenLocations);
+        json.append('}');
+        out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String toJsonString() {
+        ByteArrayOutputStream buffer = jsonBuffer.get();
+        buffer.reset();
         try {
-            jsonObject.put("id", id);
-            jsonObject.put("sender", sender);
-            jsonObject.put("timeSent", timeSent.getTime());
-            jsonObject.put("timeReceived", timeReceived == null ? JSONObject.NULL : timeReceived.getTime());
-            jsonObject.put("dataToAchieveMessageSize", dataToAchieveMessageSize);
-            jsonObject.put("sentLocation", sentLocation == null ? JSONObject.NULL : new JSONObject()
-                .put("latitude", sentLocation.getLatitude())
-                .put("longitude", sentLocation.getLongitude()));
-            jsonObject.put("receivedLocation", receivedLocation == null ? JSONObject.NULL : new JSONObject()
-                .put("latitude", receivedLocation.getLatitude())
-                .put("longitude", receivedLocation.getLongitude()));
-            jsonObject.put("distanceBetweenLocations", distanceBetweenLocations);
-        } catch (JSONException e) {
-            e.printStackTrace();
+            writeJson(buffer);
+            return buffer.toString("UTF-8");
+        } catch (IOException e) {
+            // writing to memory does not fail
+            throw new IllegalStateException(e);
+        } finally {
+            if (buffer.size() > MAX_POOLED_JSON_BUFFER_SIZE) {
+                jsonBuffer.remove();
+            }
         }
-        return jsonObject;
+    }
+
+    private static void appendJsonString(StringBuilder json, String value) {
+        json.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        json.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        json.append(c);
+                    }
+            }
+        }
+        json.append('"');
+    }
+
+    private static void appendJsonLocation(StringBuilder json, Location location) {
+        if (location == null) {
+            json.append("null");
+            return;
+        }
+        json.append("{\"latitude\":");
+        appendJsonNumber(json, location.getLatitude());
+        json.append(",\"longitude\":");
+        appendJsonNumber(json, location.getLongitude());
+        json.append('}');
+    }
+
+    private static void appendJsonNumber(StringBuilder json, double value) {
+        // JSON has no representation for NaN and infinity
+        json.append(Double.isNaN(value) || Double.isInfinite(value) ? 0 : value);
     }
 
     // equals using id and sender
@@ -169,4 +257,10 @@ public class Message {
         }
         return false;
     }
+
+    // hashCode has to agree with equals so messages can be used in hash based collections
+    @Override
+    public int hashCode() {
+        return 31 * id + sender.hashCode();
+    }
 }
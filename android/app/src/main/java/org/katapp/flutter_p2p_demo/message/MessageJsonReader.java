@@ -0,0 +1,320 @@
+package org.katapp.flutter_p2p_demo.message;
+
+import android.location.Location;
+
+import org.json.JSONException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+
+/**
+ * Reads the JSON representation of a {@link Message} straight from UTF-8 bytes.
+ *
+ * Unlike JSONObject no tree and no intermediate String of the whole message is built.
+ * The padding is never materialized, only its length is counted.
+ */
+final class MessageJsonReader {
+    private final byte[] data;
+    private final int end;
+    private int position;
+
+    private MessageJsonReader(byte[] data, int offset, int length) {
+        this.data = data;
+        this.position = offset;
+        this.end = offset + length;
+    }
+
+    static Message read(byte[] data, int offset, int length) throws JSONException {
+        return new MessageJsonReader(data, offset, length).readMessage();
+    }
+
+    private Message readMessage() throws JSONException {
+        int id = 0;
+        String sender = null;
+        Date timeSent = null;
+        Date timeReceived = null;
+        int dataToAchieveMessageSize = 0;
+        Location sentLocation = null;
+        Location receivedLocation = null;
+        float distanceBetweenLocations = 0;
+
+        expect('{');
+        if (!consume('}')) {
+            do {
+                String key = readString();
+                expect(':');
+                switch (key) {
+                    case "id":
+                        id = (int) readLong();
+                        break;
+                    case "sender":
+                        sender = readString();
+                        break;
+                    case "timeSent":
+                        timeSent = consumeNull() ? null : new Date(readLong());
+                        break;
+                    case "timeReceived":
+                        timeReceived = consumeNull() ? null : new Date(readLong());
+                        break;
+                    case "dataToAchieveMessageSize":
+                        dataToAchieveMessageSize = consumeNull() ? 0 : skipStringCountingLength();
+                        break;
+                    case "sentLocation":
+                        sentLocation = readLocation();
+                        break;
+                    case "receivedLocation":
+                        receivedLocation = readLocation();
+                        break;
+                    case "distanceBetweenLocations":
+                        distanceBetweenLocations = consumeNull() ? 0 : (float) readDouble();
+                        break;
+                    default:
+                        skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+
+        if (sender == null) {
+            throw syntaxError("Message without sender");
+        }
+
+        return new Message(id, sender, timeSent, timeReceived, dataToAchieveMessageSize,
+                sentLocation, receivedLocation, distanceBetweenLocations);
+    }
+
+    private Location readLocation() throws JSONException {
+        if (consumeNull()) {
+            return null;
+        }
+
+        Location location = new Location("");
+        expect('{');
+        if (!consume('}')) {
+            do {
+                String key = readString();
+                expect(':');
+                switch (key) {
+                    case "latitude":
+                        location.setLatitude(readDouble());
+                        break;
+                    case "longitude":
+                        location.setLongitude(readDouble());
+                        break;
+                    default:
+                        skipValue();
+                }
+            } while (consume(','));
+            expect('}');
+        }
+        return location;
+    }
+
+    private String readString() throws JSONException {
+        expect('"');
+        StringBuilder builder = null;
+        int runStart = position;
+
+        while (position < end) {
+            byte b = data[position];
+            if (b == '"') {
+                String run = new String(data, runStart, position - runStart, StandardCharsets.UTF_8);
+                position++;
+                return builder == null ? run : builder.append(run).toString();
+            }
+            if (b == '\\') {
+                if (builder == null) {
+                    builder = new StringBuilder();
+                }
+                builder.append(new String(data, runStart, position - runStart, StandardCharsets.UTF_8));
+                position++;
+                builder.append(readEscape());
+                runStart = position;
+                continue;
+            }
+            position++;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    // Counts the UTF-16 length of a string value the same way String.length() would, without decoding it
+    private int skipStringCountingLength() throws JSONException {
+        expect('"');
+        int length = 0;
+
+        while (position < end) {
+            byte b = data[position];
+            if (b == '"') {
+                position++;
+                return length;
+            }
+            if (b == '\\') {
+                position++;
+                readEscape();
+                length++;
+                continue;
+            }
+            if ((b & 0xC0) != 0x80) {
+                // first byte of a code point, 4 byte sequences become a surrogate pair
+                length += (b & 0xF8) == 0xF0 ? 2 : 1;
+            }
+            position++;
+        }
+        throw syntaxError("Unterminated string");
+    }
+
+    private char readEscape() throws JSONException {
+        if (position >= end) {
+            throw syntaxError("Unterminated escape sequence");
+        }
+        byte escaped = data[position++];
+        switch (escaped) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) escaped;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                if (position + 4 > end) {
+                    throw syntaxError("Unterminated escape sequence");
+                }
+                String hex = new String(data, position, 4, StandardCharsets.ISO_8859_1);
+                position += 4;
+                try {
+                    return (char) Integer.parseInt(hex, 16);
+                } catch (NumberFormatException e) {
+                    throw syntaxError("Invalid escape sequence \\u" + hex);
+                }
+            default:
+                throw syntaxError("Invalid escape sequence \\" + (char) escaped);
+        }
+    }
+
+    private long readLong() throws JSONException {
+        String number = readNumber();
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            // JSONObject accepts integral values written as doubles as well
+            return (long) parseDouble(number);
+        }
+    }
+
+    private double readDouble() throws JSONException {
+        return parseDouble(readNumber());
+    }
+
+    private double parseDouble(String number) throws JSONException {
+        try {
+            return Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw syntaxError("Invalid number " + number);
+        }
+    }
+
+    private String readNumber() throws JSONException {
+        skipWhitespace();
+        int start = position;
+        while (position < end && isNumberChar(data[position])) {
+            position++;
+        }
+        if (start == position) {
+            throw syntaxError("Expected a number");
+        }
+        return new String(data, start, position - start, StandardCharsets.ISO_8859_1);
+    }
+
+    private static boolean isNumberChar(byte b) {
+        return (b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E';
+    }
+
+    private void skipValue() throws JSONException {
+        skipWhitespace();
+        if (position >= end) {
+            throw syntaxError("Expected a value");
+        }
+
+        byte b = data[position];
+        if (b == '"') {
+            skipStringCountingLength();
+        } else if (b == '{') {
+            position++;
+            if (!consume('}')) {
+                do {
+                    readString();
+                    expect(':');
+                    skipValue();
+                } while (consume(','));
+                expect('}');
+            }
+        } else if (b == '[') {
+            position++;
+            if (!consume(']')) {
+                do {
+                    skipValue();
+                } while (consume(','));
+                expect(']');
+            }
+        } else if (consumeLiteral("null") || consumeLiteral("true") || consumeLiteral("false")) {
+            // nothing to do
+        } else {
+            readNumber();
+        }
+    }
+
+    private boolean consumeNull() {
+        skipWhitespace();
+        return consumeLiteral("null");
+    }
+
+    private boolean consumeLiteral(String literal) {
+        if (position + literal.length() > end) {
+            return false;
+        }
+        for (int i = 0; i < literal.length(); i++) {
+            if (data[position + i] != literal.charAt(i)) {
+                return false;
+            }
+        }
+        position += literal.length();
+        return true;
+    }
+
+    private boolean consume(char c) {
+        skipWhitespace();
+        if (position < end && data[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(char c) throws JSONException {
+        if (!consume(c)) {
+            throw syntaxError("Expected '" + c + "'");
+        }
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte b = data[position];
+            if (b != ' ' && b != '\n' && b != '\r' && b != '\t') {
+                return;
+            }
+            position++;
+        }
+    }
+
+    private JSONException syntaxError(String message) {
+        return new JSONException(message + " at position " + position);
+    }
+}
@@ -0,0 +1,82 @@
+package org.katapp.flutter_p2p_demo.message;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.katapp.flutter_p2p_demo.message.interfaces.MessageStoreListener;
+
+/**
+ * Bounded set of messages, identified by sender and id (see {@link Message#equals}).
+ * Duplicate detection is a hash lookup. When the capacity is exceeded the oldest message is evicted.
+ * The optional listener is told about every change in the order the changes happened, so observers
+ * can follow the store with deltas. It is called while the store is locked and should only hand the
+ * change off.
+ */
+public class MessageStore {
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    // keeps insertion order, so the first element is always the oldest message
+    private final LinkedHashSet<Message> messages = new LinkedHashSet<>();
+    private final MessageStoreListener listener;
+
+    public MessageStore() {
+        this(DEFAULT_CAPACITY, null);
+    }
+
+    public MessageStore(int capacity, MessageStoreListener listener) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.listener = listener;
+    }
+
+    /**
+     * @return false if a message with the same sender and id is already stored
+     */
+    public synchronized boolean add(Message message) {
+        if (!messages.add(message)) {
+            return false;
+        }
+
+        Message evicted = null;
+        if (messages.size() > capacity) {
+            Iterator<Message> iterator = messages.iterator();
+            evicted = iterator.next();
+            iterator.remove();
+        }
+
+        // the listener runs under the lock, so concurrent adds reach it in store order
+        if (listener != null) {
+            listener.onMessageAdded(message);
+            if (evicted != null) {
+                listener.onMessageEvicted(evicted);
+            }
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(Message message) {
+        return messages.contains(message);
+    }
+
+    public synchronized int size() {
+        return messages.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    // Copy of all stored messages, oldest first
+    public synchronized List<Message> getMessages() {
+        return new ArrayList<>(messages);
+    }
+
+    public synchronized void clear() {
+        messages.clear();
+    }
+}
@@ -0,0 +1,43 @@
+package org.katapp.flutter_p2p_demo.message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Filler that gives test messages a certain size.
+ *
+ * Messages only store the padding size, the content is always the same character.
+ * It is streamed from one shared pattern that grows to the largest size requested so far.
+ */
+public final class Padding {
+    public static final byte PATTERN_BYTE = 'a';
+
+    private static final int WRITE_CHUNK_SIZE = 64 * 1024;
+
+    private static byte[] pattern = new byte[0];
+
+    private Padding() {
+    }
+
+    // Streams the padding in chunks of the shared pattern, without creating a String
+    public static void writeTo(OutputStream out, int size) throws IOException {
+        byte[] chunk = getPattern(Math.min(size, WRITE_CHUNK_SIZE));
+        int remaining = size;
+        while (remaining > 0) {
+            int length = Math.min(remaining, chunk.length);
+            out.write(chunk, 0, length);
+            remaining -= length;
+        }
+    }
+
+    // The returned array is shared and at least size bytes long, it must not be modified
+    static synchronized byte[] getPattern(int size) {
+        if (pattern.length < size) {
+            byte[] grown = new byte[size];
+            Arrays.fill(grown, PATTERN_BYTE);
+            pattern = grown;
+        }
+        return pattern;
+    }
+}
@@ -0,0 +1,6 @@
+package org.katapp.flutter_p2p_demo.message.interfaces;
+
+public interface FrameListener {
+    // data is only valid for the duration of the call, copy what needs to be kept
+    void onFrame(byte type, byte flags, byte[] data, int offset, int length);
+}
@@ -0,0 +1,9 @@
+package org.katapp.flutter_p2p_demo.message.interfaces;
+
+import org.katapp.flutter_p2p_demo.message.Message;
+
+public interface MessageStoreListener {
+    void onMessageAdded(Message message);
+
+    void onMessageEvicted(Message message);
+}
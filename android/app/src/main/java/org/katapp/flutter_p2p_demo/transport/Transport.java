@@ -0,0 +1,32 @@
+package org.katapp.flutter_p2p_demo.transport;
+
+import java.util.Map;
+
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportConnectionListener;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportMessageListener;
+
+/**
+ * Common interface of the native transports (BLE, Bluetooth Classic, Wi-Fi Direct, Wi-Fi Aware).
+ *
+ * MainActivity registers the method and event channels of every transport the same way,
+ * so changes to sending, receiving or message handling apply to all of them.
+ */
+public interface Transport {
+    void start();
+
+    void stop();
+
+    // Sends the JSON of a message to all connected peers
+    void sendMessage(String messageJson);
+
+    // Listeners are called on the main thread
+    void setConnectionListener(TransportConnectionListener listener);
+
+    void setMessageListener(TransportMessageListener listener);
+
+    // Values must be supported by the method channel codec
+    Map<String, Object> getStats();
+
+    // Initial size of the receive buffer of every connection, applies to connections opened afterwards
+    void setReadBufferSize(int bytes);
+}
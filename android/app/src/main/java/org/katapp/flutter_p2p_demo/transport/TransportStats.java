@@ -0,0 +1,41 @@
+package org.katapp.flutter_p2p_demo.transport;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Message and byte counters every transport keeps, reported as part of its stats.
+ * Bytes are payload bytes on both sides, the frame header is not counted.
+ */
+public class TransportStats {
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong messagesReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong sendErrors = new AtomicLong();
+
+    public void onMessageSent(int bytes) {
+        messagesSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void onMessageReceived(int bytes) {
+        messagesReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    public void onSendError() {
+        sendErrors.incrementAndGet();
+    }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("messagesSent", messagesSent.get());
+        stats.put("bytesSent", bytesSent.get());
+        stats.put("messagesReceived", messagesReceived.get());
+        stats.put("bytesReceived", bytesReceived.get());
+        stats.put("sendErrors", sendErrors.get());
+        return stats;
+    }
+}
@@ -0,0 +1,6 @@
+package org.katapp.flutter_p2p_demo.transport.interfaces;
+
+public interface TransportConnectionListener {
+    // connectionState is passed to Dart as is, e.g. a Boolean or a Map with connection details, null if disconnected
+    void onConnectionChanged(Object connectionState);
+}
@@ -0,0 +1,5 @@
+package org.katapp.flutter_p2p_demo.transport.interfaces;
+
+public interface TransportMessageListener {
+    void onMessageReceived(String message);
+}
@@ -24,25 +24,30 @@ import android.net.NetworkSpecifier;
 import android.net.wifi.aware.WifiAwareNetworkSpecifier;
 import android.net.wifi.aware.WifiAwareNetworkInfo;
 import java.net.Inet6Address;
-import java.net.ServerSocket;
 import android.os.Handler;
 import android.os.Looper;
 import java.util.ArrayList;
 import java.net.Socket;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.io.InputStream;
 import org.json.JSONException;
-import org.json.JSONObject;
 import java.nio.charset.StandardCharsets;
 import java.net.InetAddress;
-import java.util.Iterator;
-
-import org.katapp.flutter_p2p_demo.wifidirect.interfaces.WiFiAwareConnectionInfoListener;
-import org.katapp.flutter_p2p_demo.wifidirect.interfaces.WiFiAwareMessageListener;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.katapp.flutter_p2p_demo.concurrent.BoundedExecutor;
+import org.katapp.flutter_p2p_demo.message.BroadcastFrame;
+import org.katapp.flutter_p2p_demo.message.FrameCodec;
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
 import org.katapp.flutter_p2p_demo.message.Message;
+import org.katapp.flutter_p2p_demo.transport.Transport;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportConnectionListener;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportMessageListener;
 
-public class WiFiAwareManager {
+public class WiFiAwareManager implements Transport {
     private Context context;
     private WifiAwareManager wifiAwareManager;
     private IntentFilter filter;
@@ -54,32 +59,50 @@ public class WiFiAwareManager {
     private Network network;
     private NetworkCapabilities networkCapabilities;
     private ConnectivityManager.NetworkCallback networkCallback;
-    private WiFiAwareConnectionInfoListener connectionInfoListener;
-    private WiFiAwareMessageListener messageListener;
+    private TransportConnectionListener connectionInfoListener;
+    private TransportMessageListener messageListener;
+    private final TransportStats stats = new TransportStats();
+    private volatile int readBufferSize = FrameDecoder.DEFAULT_STREAM_CAPACITY;
 
     private Handler mainHandler;
 
-    private ServerSocket serverSocket;
-    private List<Socket> subscribers = new ArrayList<>();
+    private WiFiAwareServer server;
     int port = 8888;
-    private Thread serverThread;
 
-    private List<Socket> clientSockets = new ArrayList<>();
-    private List<Thread> clientThreads = new ArrayList<>();
+    // one connection per server network, each read by its own task of the reader pool
+    private static final int MAX_SERVERS = 4;
+    private final ConcurrentHashMap<Network, Socket> serverSockets = new ConcurrentHashMap<>();
+    private final BoundedExecutor readerPool = new BoundedExecutor("aware-reader", MAX_SERVERS, 1);
 
     // keep track of ipv6 addresses of servers connected to
     private final List<Inet6Address> serverAddresses = new ArrayList<>();
 
-    private String priorData = "";
-
-    public void setConnectionInfoListener(WiFiAwareConnectionInfoListener connectionInfoListener) {
+    @Override
+    public void setConnectionListener(TransportConnectionListener connectionInfoListener) {
         this.connectionInfoListener = connectionInfoListener;
     }
 
-    public void setMessageListener(WiFiAwareMessageListener messageListener) {
+    @Override
+    public void setMessageListener(TransportMessageListener messageListener) {
         this.messageListener = messageListener;
     }
 
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> transportStats = stats.toMap();
+        WiFiAwareServer currentServer = server;
+        if (currentServer != null) {
+            transportStats.put("subscribers", currentServer.getSubscriberCount());
+            transportStats.put("subscriberQueues", currentServer.getSubscriberStats());
+        } else {
+            transportStats.put("subscribers", 0);
+        }
+        transportStats.put("servers", serverSockets.size());
+        transportStats.put("readBufferSize", readBufferSize);
+        transportStats.put("readers", readerPool.getStats());
+        return transportStats;
+    }
+
     private final PublishConfig publishConfig = new PublishConfig.Builder()
             .setServiceName("KatAppWiFiAwareService")
             .build();
@@ -95,6 +118,7 @@ public class WiFiAwareManager {
         return context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI_AWARE);
     }
 
+    @Override
     public void start() {
         if (!isAvailable()) {
             Log.d("WiFiAwareManager", "WiFi Aware is not available");
@@ -129,55 +153,18 @@ public class WiFiAwareManager {
         }, null);
     }
 
+    @Override
     public void stop() {
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-            } catch (Exception e) {
-                Log.d("WiFiAwareManager", "Error closing server socket", e);
-            }
-            serverSocket = null;
-        }
-    
-        try {
-            if (serverThread != null) {
-                serverThread.interrupt();
-                serverThread.join(1000);  // Wait for 1 second for thread to stop
-                serverThread = null;
-            }
-        } catch (InterruptedException e) {
-            Log.e("WiFiAwareManager", "Interrupted while stopping server thread", e);
+        if (server != null) {
+            server.close();
+            server = null;
         }
     
-        for (Socket subscriber : subscribers) {
-            try {
-                subscriber.close();
-            } catch (Exception e) {
-                Log.d("WiFiAwareManager", "Error closing subscriber socket", e);
-            }
+        // the readers end as soon as their socket is closed
+        for (Socket serverSocket : serverSockets.values()) {
+            closeSocket(serverSocket);
         }
-        subscribers.clear();
-    
-        for (Socket clientSocket : clientSockets) {
-            try {
-                clientSocket.close();
-            } catch (Exception e) {
-                Log.d("WiFiAwareManager", "Error closing client socket", e);
-            }
-        }
-        clientSockets.clear();
-    
-        for (Thread clientThread : clientThreads) {
-            if (clientThread != null) {
-                clientThread.interrupt();
-                try {
-                    clientThread.join(1000); // Wait for thread to stop
-                } catch (InterruptedException e) {
-                    Log.e("WiFiAwareManager", "Interrupted while stopping client thread", e);
-                }
-            }
-        }
-        clientThreads.clear();
+        serverSockets.clear();
     
         if (networkCallback != null && connectivityManager != null) {
             connectivityManager.unregisterNetworkCallback(networkCallback);
@@ -242,159 +229,142 @@ public class WiFiAwareManager {
     }
 
     private void createSocket() {
+        server = new WiFiAwareServer(port, stats);
         try {
-            serverSocket = new ServerSocket(port);
-            //port = serverSocket.getLocalPort();
-            serverThread = new Thread(this::acceptClients);
-            serverThread.start();
-        } catch (Exception e) {
-            Log.d("WiFiAwareManager", "Error creating server socket");
+            server.start();
+        } catch (IOException e) {
+            Log.d("WiFiAwareManager", "Error creating server socket", e);
+            server.close();
+            server = null;
         }
     }
 
-    private void acceptClients() {
-        try {
-            while (true) {
-                Socket subscriber = serverSocket.accept(); // accept a connection
-                synchronized (subscribers) {
-                    subscribers.add(subscriber); // add to the list
-                }
-                System.out.println("Subscriber connected: " + subscriber.getInetAddress());
-            }
-        } catch (IOException e) {
-            System.err.println("Error accepting subscriber connection");
-            e.printStackTrace();
-        }
+    @Override
+    public void setReadBufferSize(int bytes) {
+        readBufferSize = bytes;
     }
 
-    public void sendDataToAllClients(String messageJson) {
-        new Thread(() -> {
-            sendDatatoAllClientsThread(messageJson + "%");
-        }).start();
+    @Override
+    public void sendMessage(String messageJson) {
+        WiFiAwareServer currentServer = server;
+        if (currentServer == null) {
+            return;
+        }
+
+        // encoded once, every subscriber writes the same frame from its own queue
+        BroadcastFrame frame = BroadcastFrame.encodeMessage(messageJson);
+        try {
+            currentServer.broadcast(frame);
+        } finally {
+            frame.release();
+        }
     }
 
-    private void sendDatatoAllClientsThread(String messageJson) {
-        byte[] data = messageJson.getBytes();
-
-        Log.d("WiFiAwareManager", "Sending data to all subscribers");
-        Log.d("WiFiAwareManager", "Subscribers: " + subscribers.size());
-
-        synchronized (subscribers) {
-            Iterator<Socket> iterator = subscribers.iterator();
-            while (iterator.hasNext()) {
-                Socket subscriber = iterator.next();
-                try {
-                    OutputStream out = subscriber.getOutputStream();
-                    out.write(data);
-                    out.flush();
-                } catch (IOException e) {
-                    System.err.println("Error sending data to client: " + subscriber.getInetAddress());
-                    e.printStackTrace();
-        
-                    try {
-                        subscriber.close();
-                    } catch (IOException e2) {
-                        System.err.println("Error closing client socket");
-                        e2.printStackTrace();
-                    }
-        
-                    iterator.remove(); // Safe removal during iteration
-        
-                    System.out.println("Subscriber disconnected: " + subscriber.getInetAddress());
-                }
+    private void connectToServer(Network serverNetwork, NetworkCapabilities capabilities) {
+        // capabilities change repeatedly for a network that is up, a live or connecting socket is kept
+        Socket current = serverSockets.get(serverNetwork);
+        if (current != null) {
+            if (!current.isClosed()) {
+                return;
             }
+            serverSockets.remove(serverNetwork, current);
         }
-    }
 
-    private void connectToServer() {
-        WifiAwareNetworkInfo peerAwareInfo = (WifiAwareNetworkInfo) networkCapabilities.getTransportInfo();
+        if (serverSockets.size() >= MAX_SERVERS) {
+            Log.d("WiFiAwareManager", "Not connecting to another server, already connected to " + MAX_SERVERS + " servers");
+            return;
+        }
+
+        WifiAwareNetworkInfo peerAwareInfo = (WifiAwareNetworkInfo) capabilities.getTransportInfo();
         Inet6Address peerIpv6 = peerAwareInfo.getPeerIpv6Addr();
         //int peerPort = peerAwareInfo.getPort();
         int peerPort = port;
 
-        Log.d("WiFiAwareManager", "Connecting to server " + peerIpv6 + " on port " + peerPort);
+        Socket socket;
+        try {
+            // the receive buffer decides the TCP window, it has to be set before connecting
+            socket = serverNetwork.getSocketFactory().createSocket();
+            socket.setReceiveBufferSize(readBufferSize);
+        } catch (IOException e) {
+            Log.d("WiFiAwareManager", "Error creating socket", e);
+            return;
+        }
+
+        if (serverSockets.putIfAbsent(serverNetwork, socket) != null) {
+            closeSocket(socket);
+            return;
+        }
+
+        // connecting blocks, it runs on the reader of the connection instead of the network callback
+        InetSocketAddress serverAddress = new InetSocketAddress(peerIpv6, peerPort);
+        if (!readerPool.tryExecute(() -> readFromServer(serverNetwork, socket, serverAddress))) {
+            Log.e("WiFiAwareManager", "No reader available for " + peerIpv6);
+            serverSockets.remove(serverNetwork, socket);
+            closeSocket(socket);
+        }
+    }
 
+    // Runs on the reader pool until the connection ends, every connection has its own decoder
+    private void readFromServer(Network serverNetwork, Socket socket, InetSocketAddress serverAddress) {
         try {
-            Socket socket = network.getSocketFactory().createSocket(peerIpv6, peerPort);
-            clientSockets.add(socket);
+            Log.d("WiFiAwareManager", "Connecting to server " + serverAddress);
+            socket.connect(serverAddress);
             Log.d("WiFiAwareManager", "Connected to server");
 
-            Thread socketThread = new Thread(() -> {
-                try (InputStream inputStream = socket.getInputStream()) {
-                    byte[] data = new byte[1024];
-                    int bytesRead;
-                    while ((bytesRead = inputStream.read(data)) != -1) {
-                        String partialMessage = new String(data, 0, bytesRead);
-                        processMessages(partialMessage);
-                    }
-                } catch (IOException e) {
-                    Log.e("WiFiAwareManager", "Error reading from server", e);
-                } finally {
-                    try {
-                        socket.close();
-                    } catch (IOException e) {
-                        Log.e("WiFiAwareManager", "Error closing socket", e);
-                    }
-                }
-            });
-
-            socketThread.start();
-            clientThreads.add(socketThread);
+            InputStream inputStream = socket.getInputStream();
+            FrameDecoder decoder = new FrameDecoder(readBufferSize, this::processFrame);
+            while (decoder.readFrom(inputStream) != -1) {
+                // frames are passed to processFrame as soon as they are complete
+            }
         } catch (IOException e) {
-            Log.d("WiFiAwareManager", "Error connecting to server", e);
+            if (!socket.isClosed()) {
+                Log.e("WiFiAwareManager", "Error reading from server", e);
+            }
+        } finally {
+            serverSockets.remove(serverNetwork, socket);
+            closeSocket(socket);
         }
     }
 
-    private void processMessages(String partialMessage) {
-        String data = priorData + partialMessage;
+    private static void closeSocket(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e("WiFiAwareManager", "Error closing socket", e);
+        }
+    }
 
-        if (!data.endsWith("%")) {
-            priorData = data;
+    // Called on the reader of the connection, so messages of a server reach Dart in the order they were sent
+    private void processFrame(byte type, byte flags, byte[] data, int offset, int length) {
+        if (type != FrameCodec.TYPE_MESSAGE) {
+            Log.d("WiFiAwareManager", "Ignoring frame of type " + type);
             return;
         }
 
-        priorData = "";
-        data = data.substring(0, data.length() - 1);
-
-        String[] messages = data.split("%");
-
-        Log.d("WiFiAwareManager", "Messages: " + messages.length);
-
-        for (String message : messages) {
-            try {
-                JSONObject messageJSON = new JSONObject(message);
-                Message messageObject = new Message(messageJSON.toString());
-    
-                new Thread(() -> sendMessageToDart(messageObject)).start();
-            } catch (JSONException e) {
-                Log.e("WiFiAwareManager", "Malformed JSON", e);
-                continue;
-            }
+        stats.onMessageReceived(length);
+        try {
+            Message messageObject = Message.fromJson(data, offset, length);
+            sendMessageToDart(messageObject);
+        } catch (JSONException e) {
+            Log.e("WiFiAwareManager", "Malformed JSON", e);
         }
     }
 
     private void sendMessageToDart(Message message) {
         message.setTimeReceivedAsCurrent();
         //message.setReceivedLocationAsCurrent();
-        if (mainHandler != null) {
-            mainHandler.post(() -> {
+        String messageJson = message.toJsonString();
+
+        Handler handler = mainHandler;
+        if (handler != null) {
+            handler.post(() -> {
                 if (messageListener != null) {
-                    messageListener.onMessageReceived(message.toJson().toString());
+                    messageListener.onMessageReceived(messageJson);
                 }
             });
         }
     }
     
-    private boolean isJsonComplete(StringBuilder partialMessage, int start, int end) {
-        String testingStr = partialMessage.substring(start, end + 1);
-        try {
-            new JSONObject(testingStr);
-            return true;
-        } catch (JSONException e) {
-            return false;
-        }
-    }
-
     private void requestNetwork(PublishDiscoverySession publishSession, SubscribeDiscoverySession subscribeSession, PeerHandle peerHandle) {
         NetworkSpecifier networkSpecifier;
 
@@ -433,32 +403,15 @@ public class WiFiAwareManager {
                 network = newNetwork;
                 networkCapabilities = newNetworkCapabilities;
 
-                synchronized (clientSockets) {
-                    // close client connections and threads and open new
-                    for (Socket clientSocket : clientSockets) {
-                        try {
-                            clientSocket.close();
-                        } catch (IOException e) {
-                            Log.e("WiFiAwareManager", "Error closing client socket", e);
-                        }
-                    }
-
-                    for (Thread clientThread : clientThreads) {
-                        clientThread.interrupt();
-                    }
-
-                    clientSockets.clear();
-                }
-
                 if (mainHandler != null) {
                     mainHandler.post(() -> {
                         if (connectionInfoListener != null) {
-                            connectionInfoListener.onConnectionChange(true);
+                            connectionInfoListener.onConnectionChanged(true);
                         }
                     });
                 }
 
-                connectToServer();
+                connectToServer(newNetwork, newNetworkCapabilities);
             }
 
             @Override
@@ -467,10 +420,15 @@ public class WiFiAwareManager {
                 // network = null;
                 // networkCapabilities = null;
 
+                Socket lostSocket = serverSockets.remove(network);
+                if (lostSocket != null) {
+                    closeSocket(lostSocket);
+                }
+
                 if (mainHandler != null) {
                     mainHandler.post(() -> {
                         if (connectionInfoListener != null) {
-                            connectionInfoListener.onConnectionChange(false);
+                            connectionInfoListener.onConnectionChanged(false);
                         }
                     });
                 }
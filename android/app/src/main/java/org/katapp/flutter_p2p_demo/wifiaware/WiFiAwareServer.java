@@ -0,0 +1,302 @@
+package org.katapp.flutter_p2p_demo.wifiaware;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.katapp.flutter_p2p_demo.message.BroadcastFrame;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+
+/**
+ * Server side of the Wi-Fi Aware data path, the subscribers connect here to receive our messages.
+ *
+ * A single thread serves all subscribers with non-blocking channels. Every subscriber has its own
+ * write queue, so a slow subscriber only backs up its own queue and never delays the others.
+ */
+class WiFiAwareServer {
+    // per subscriber, frames for a subscriber that is this far behind are dropped
+    private static final int MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+    // subscribers do not send anything yet, reads only detect closed connections
+    private static final int READ_BUFFER_SIZE = 4 * 1024;
+
+    private final int port;
+    private final TransportStats stats;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    // subscribers with new frames, their write interest is set on the selector thread
+    private final ConcurrentLinkedQueue<Subscriber> pendingWrites = new ConcurrentLinkedQueue<>();
+
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread selectorThread;
+    private volatile boolean closed = false;
+
+    WiFiAwareServer(int port, TransportStats stats) {
+        this.port = port;
+        this.stats = stats;
+    }
+
+    void start() throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        selectorThread = new Thread(this::runSelector, "WiFiAwareServer");
+        selectorThread.start();
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    List<Map<String, Object>> getSubscriberStats() {
+        List<Map<String, Object>> subscriberStats = new ArrayList<>();
+        for (Subscriber subscriber : subscribers) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("address", subscriber.address);
+            entry.put("queuedFrames", subscriber.getQueuedFrames());
+            entry.put("queuedBytes", subscriber.getQueuedBytes());
+            subscriberStats.add(entry);
+        }
+        return subscriberStats;
+    }
+
+    // Queues the frame for every subscriber, never blocks. The caller keeps its own reference
+    void broadcast(BroadcastFrame frame) {
+        if (closed) {
+            return;
+        }
+
+        boolean queued = false;
+        for (Subscriber subscriber : subscribers) {
+            if (subscriber.enqueue(frame)) {
+                pendingWrites.add(subscriber);
+                queued = true;
+            } else {
+                stats.onSendError();
+                Log.e("WiFiAwareManager", "Subscriber " + subscriber.address + " is too slow, dropping frame");
+            }
+        }
+
+        if (queued) {
+            selector.wakeup();
+        }
+    }
+
+    void close() {
+        closed = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+
+        if (selectorThread == null) {
+            // start failed before the selector thread could take over the channels
+            closeAll();
+            return;
+        }
+
+        try {
+            selectorThread.join(1000);
+            selectorThread = null;
+        } catch (InterruptedException e) {
+            Log.e("WiFiAwareManager", "Interrupted while stopping server thread", e);
+        }
+    }
+
+    private void runSelector() {
+        try {
+            while (!closed) {
+                selector.select();
+
+                Subscriber writable;
+                while ((writable = pendingWrites.poll()) != null) {
+                    if (writable.key.isValid()) {
+                        writable.key.interestOps(writable.key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Subscriber subscriber = (Subscriber) key.attachment();
+                    try {
+                        if (key.isReadable() && !subscriber.read()) {
+                            remove(subscriber);
+                            continue;
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            subscriber.write();
+                        }
+                    } catch (IOException e) {
+                        stats.onSendError();
+                        Log.e("WiFiAwareManager", "Error on subscriber " + subscriber.address + ": " + e.getMessage());
+                        remove(subscriber);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                Log.e("WiFiAwareManager", "Server selector failed", e);
+            }
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Subscriber subscriber = new Subscriber(channel);
+        subscriber.key = channel.register(selector, SelectionKey.OP_READ, subscriber);
+        subscribers.add(subscriber);
+        Log.d("WiFiAwareManager", "Subscriber connected: " + subscriber.address);
+    }
+
+    private void remove(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+        subscriber.releaseQueue();
+        subscriber.key.cancel();
+        try {
+            subscriber.channel.close();
+        } catch (IOException e) {
+            Log.e("WiFiAwareManager", "Error closing subscriber socket", e);
+        }
+        Log.d("WiFiAwareManager", "Subscriber disconnected: " + subscriber.address);
+    }
+
+    private void closeAll() {
+        for (Subscriber subscriber : subscribers) {
+            remove(subscriber);
+        }
+        pendingWrites.clear();
+
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.e("WiFiAwareManager", "Error closing server socket", e);
+        }
+        try {
+            if (selector != null) {
+                selector.close();
+            }
+        } catch (IOException e) {
+            Log.e("WiFiAwareManager", "Error closing selector", e);
+        }
+    }
+
+    private class Subscriber {
+        final SocketChannel channel;
+        final String address;
+        SelectionKey key;
+
+        // guarded by this, filled by the senders and drained by the selector thread
+        private final ArrayDeque<BroadcastFrame> queue = new ArrayDeque<>();
+        // view of the head of the queue, only this subscriber moves its position
+        private ByteBuffer current;
+        private int queuedBytes = 0;
+        private boolean removed = false;
+        private ByteBuffer readBuffer;
+
+        Subscriber(SocketChannel channel) {
+            this.channel = channel;
+            this.address = String.valueOf(channel.socket().getInetAddress());
+        }
+
+        // Returns false if the subscriber is too far behind to take the frame
+        synchronized boolean enqueue(BroadcastFrame frame) {
+            if (removed) {
+                return true;
+            }
+            if (queuedBytes + frame.length() > MAX_QUEUED_BYTES) {
+                return false;
+            }
+            queue.add(frame.retain());
+            queuedBytes += frame.length();
+            return true;
+        }
+
+        synchronized int getQueuedFrames() {
+            return queue.size();
+        }
+
+        synchronized int getQueuedBytes() {
+            return queuedBytes;
+        }
+
+        // Writes as much as the socket takes, the rest waits for the next write readiness
+        synchronized void write() throws IOException {
+            BroadcastFrame frame;
+            while ((frame = queue.peek()) != null) {
+                if (current == null) {
+                    current = frame.view();
+                }
+                channel.write(current);
+                if (current.hasRemaining()) {
+                    return;
+                }
+
+                queue.poll();
+                current = null;
+                queuedBytes -= frame.length();
+                stats.onMessageSent(frame.payloadLength());
+                frame.release();
+            }
+
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        // Gives back the frames that were not written, later frames are not queued anymore
+        synchronized void releaseQueue() {
+            removed = true;
+            current = null;
+            queuedBytes = 0;
+            BroadcastFrame frame;
+            while ((frame = queue.poll()) != null) {
+                frame.release();
+            }
+        }
+
+        // Returns false once the subscriber closed the connection
+        boolean read() throws IOException {
+            if (readBuffer == null) {
+                readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            }
+            readBuffer.clear();
+            return channel.read(readBuffer) != -1;
+        }
+    }
+}
@@ -1,5 +0,0 @@
-package org.katapp.flutter_p2p_demo.wifidirect.interfaces;
-
-public interface WiFiAwareConnectionInfoListener {
-    void onConnectionChange(boolean connected);
-}
\ No newline at end of file
@@ -0,0 +1,129 @@
+package org.katapp.flutter_p2p_demo.wifidirect;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.katapp.flutter_p2p_demo.concurrent.AppExecutors;
+import org.katapp.flutter_p2p_demo.concurrent.SerialExecutor;
+import org.katapp.flutter_p2p_demo.message.FrameCodec;
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+
+/**
+ * Socket connection to one member of the Wi-Fi Direct group.
+ *
+ * Reads run on an own thread and are decoded with the shared frame format,
+ * writes run in order on the shared I/O pool.
+ */
+class WiFiDirectLink {
+    private static final int MAX_PENDING_WRITES = 64;
+
+    private final Socket socket;
+    private final WiFiDirectManager manager;
+    // counters of this member only, the manager keeps the totals
+    private final TransportStats linkStats = new TransportStats();
+    private final SerialExecutor writeExecutor = new SerialExecutor(AppExecutors.io(), MAX_PENDING_WRITES);
+
+    private Thread readThread;
+    private volatile boolean closed = false;
+
+    WiFiDirectLink(Socket socket, WiFiDirectManager manager) {
+        this.socket = socket;
+        this.manager = manager;
+    }
+
+    String getAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+
+    int getPendingWrites() {
+        return writeExecutor.getPendingTasks();
+    }
+
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = linkStats.toMap();
+        stats.put("address", getAddress());
+        stats.put("pendingWrites", getPendingWrites());
+        return stats;
+    }
+
+    void start() {
+        readThread = new Thread(() -> {
+            try {
+                InputStream inputStream = socket.getInputStream();
+                FrameDecoder decoder = new FrameDecoder(manager.getReadBufferSize(), (type, flags, data, offset, length) -> {
+                    linkStats.onMessageReceived(length);
+                    manager.onLinkFrame(this, type, flags, data, offset, length);
+                });
+
+                while (decoder.readFrom(inputStream) != -1) {
+                    // frames are passed to the listener as soon as they are complete
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    Log.e("WiFiDirectActivity", "Error reading from " + getAddress() + ": " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        });
+        readThread.start();
+    }
+
+    // Queues an encoded frame, returns false and counts a send error if too many writes are pending
+    boolean send(byte[] frame) {
+        if (closed) {
+            return false;
+        }
+
+        try {
+            writeExecutor.execute(() -> {
+                try {
+                    OutputStream outputStream = socket.getOutputStream();
+                    outputStream.write(frame);
+                    outputStream.flush();
+                    // payload bytes, like the receive side
+                    int payloadLength = frame.length - FrameCodec.HEADER_SIZE;
+                    linkStats.onMessageSent(payloadLength);
+                    manager.getTransportStats().onMessageSent(payloadLength);
+                } catch (IOException e) {
+                    linkStats.onSendError();
+                    manager.getTransportStats().onSendError();
+                    Log.e("WiFiDirectActivity", "Error writing to " + getAddress() + ": " + e.getMessage());
+                    close();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            linkStats.onSendError();
+            manager.getTransportStats().onSendError();
+            return false;
+        }
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e("WiFiDirectActivity", "Error closing socket", e);
+        }
+
+        if (readThread != null) {
+            readThread.interrupt();
+        }
+        manager.onLinkClosed(this);
+    }
+}
@@ -8,13 +8,22 @@ import android.content.IntentFilter;
 import android.os.Bundle;
 import android.util.Log;
 import android.content.Intent;
+import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.net.wifi.p2p.WifiP2pDevice;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Collection;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import android.net.wifi.p2p.WifiP2pDeviceList;
 import android.net.wifi.p2p.WifiP2pManager.PeerListListener;
 import android.net.wifi.p2p.WifiP2pManager.DnsSdServiceResponseListener;
@@ -28,9 +37,14 @@ import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.WifiP2pManager.ConnectionInfoListener;
 
 import org.katapp.flutter_p2p_demo.wifidirect.WiFiDirectBroadcastReceiver;
-import org.katapp.flutter_p2p_demo.wifidirect.interfaces.WiFiP2PConnectionInfoListener;
+import org.katapp.flutter_p2p_demo.message.FrameCodec;
+import org.katapp.flutter_p2p_demo.message.FrameDecoder;
+import org.katapp.flutter_p2p_demo.transport.Transport;
+import org.katapp.flutter_p2p_demo.transport.TransportStats;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportConnectionListener;
+import org.katapp.flutter_p2p_demo.transport.interfaces.TransportMessageListener;
 
-public class WiFiDirectManager {
+public class WiFiDirectManager implements Transport {
 
     WifiP2pManager manager;
     Channel channel;
@@ -38,14 +52,108 @@ public class WiFiDirectManager {
     IntentFilter intentFilter;
     Context context;
     WifiP2pDnsSdServiceRequest serviceRequest;
-    WiFiP2PConnectionInfoListener wiFiP2PConnectionInfoListener;
+    TransportConnectionListener connectionListener;
+    TransportMessageListener messageListener;
     WifiP2pDnsSdServiceInfo serviceInfo;
     WifiP2pInfo wifiP2pInfo;
 
+    /**
+     * Lifecycle of the Wi-Fi Direct session. The framework finishes starting and stopping
+     * asynchronously, the state only changes in its callbacks. All transitions run on the main thread.
+     */
+    enum State {
+        STOPPED,
+        STARTING,
+        RUNNING,
+        STOPPING
+    }
+
+    private State state = State.STOPPED;
+    // start requested while the previous session was still stopping, runs once the stop completed
+    private boolean startQueued = false;
+    private int pendingStartOperations;
     private int pendingShutdownOperations;
+    // the framework does not always answer every request, do not wait for it forever
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+    private final Runnable shutdownTimeout = () -> {
+        Log.e("WiFiDirectActivity", "Shutdown timed out, " + pendingShutdownOperations + " operations pending");
+        finishStop();
+    };
+
+    private long startRequestedAt = 0;
+    private long stopRequestedAt = 0;
+    // stop request of a restart, only set while a start queued during the stop is running
+    private long restartStopRequestedAt = 0;
+    private long startLatencyMs = -1;
+    private long stopLatencyMs = -1;
+    private long restartLatencyMs = -1;
+
+    private final TransportStats stats = new TransportStats();
+    private volatile int readBufferSize = FrameDecoder.DEFAULT_STREAM_CAPACITY;
+
+    // port advertised in the DNS-SD record, the group owner listens on it
+    static final int PORT = 8888;
+    private static final int SOCKET_CONNECT_ATTEMPTS = 5;
+    private static final int SOCKET_CONNECT_TIMEOUT_MS = 5000;
+    private static final long SOCKET_CONNECT_RETRY_DELAY_MS = 1000;
+
+    // P2P connect attempts per peer list change, the delay grows with every attempt
+    private static final int MAX_GROUP_CONNECT_ATTEMPTS = 3;
+    private static final long GROUP_CONNECT_RETRY_DELAY_MS = 2000;
+    private int groupConnectAttempts = 0;
+    private final Runnable groupConnectRetry = this::connectToGroup;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private ServerSocket serverSocket;
+    private Thread acceptThread;
+    private Thread connectThread;
+    private volatile boolean groupOwner = false;
+    // sockets to the other group members by address, the group owner has one per client, a client one to the owner
+    private final ConcurrentHashMap<String, WiFiDirectLink> links = new ConcurrentHashMap<>();
+
+    // connection details of the formed group, null when disconnected
+    @Override
+    public void setConnectionListener(TransportConnectionListener listener) {
+        this.connectionListener = listener;
+    }
+
+    @Override
+    public void setMessageListener(TransportMessageListener listener) {
+        this.messageListener = listener;
+    }
+
+    // Sends the message to every group member connected to this device
+    @Override
+    public void sendMessage(String messageJson) {
+        sendToLinks(FrameCodec.encodeMessage(messageJson), null);
+    }
+
+    // Queues the frame on every link except the given one
+    private void sendToLinks(byte[] frame, WiFiDirectLink except) {
+        for (WiFiDirectLink link : links.values()) {
+            if (link != except && !link.send(frame)) {
+                Log.e("WiFiDirectActivity", "Dropping message to " + link.getAddress() + ", too many pending writes");
+            }
+        }
+    }
 
-    public void setWiFiP2PConnectionInfoListener(WiFiP2PConnectionInfoListener listener) {
-        this.wiFiP2PConnectionInfoListener = listener;
+    @Override
+    public Map<String, Object> getStats() {
+        Map<String, Object> transportStats = stats.toMap();
+        transportStats.put("peers", peers.size());
+        transportStats.put("groupFormed", wifiP2pInfo != null && wifiP2pInfo.groupFormed);
+        transportStats.put("isGroupOwner", groupOwner);
+        transportStats.put("readBufferSize", readBufferSize);
+        transportStats.put("state", state.name());
+        transportStats.put("startLatencyMs", startLatencyMs);
+        transportStats.put("stopLatencyMs", stopLatencyMs);
+        transportStats.put("restartLatencyMs", restartLatencyMs);
+        List<Map<String, Object>> members = new ArrayList<>();
+        for (WiFiDirectLink link : links.values()) {
+            members.add(link.getStats());
+        }
+        transportStats.put("members", members);
+        return transportStats;
     }
 
     private List<WifiP2pDevice> peers = new ArrayList<>();
@@ -55,19 +163,33 @@ public class WiFiDirectManager {
         this.context = context;
     }
 
+    @Override
     public void start() {
-        while (pendingShutdownOperations > 0) {
-            Log.d("WiFiDirectActivity", "Waiting for shutdown to complete");
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                Log.e("WiFiDirectActivity", "Interrupted while waiting for shutdown to complete", e);
-            }
+        switch (state) {
+            case STARTING:
+            case RUNNING:
+                Log.d("WiFiDirectActivity", "WiFi Direct already " + state);
+                return;
+            case STOPPING:
+                // the previous session is still shutting down, start again once it is done
+                Log.d("WiFiDirectActivity", "Waiting for shutdown to complete");
+                startQueued = true;
+                startRequestedAt = SystemClock.elapsedRealtime();
+                return;
+            default:
+                startRequestedAt = SystemClock.elapsedRealtime();
+                startNow();
         }
+    }
+
+    private void startNow() {
+        state = State.STARTING;
 
         manager = (WifiP2pManager) context.getSystemService(Context.WIFI_P2P_SERVICE);
         channel = manager.initialize(context, Looper.getMainLooper(), null);
 
+        // local service and service request, RUNNING once both are answered
+        pendingStartOperations = 2;
         registerService();
         setupServiceDiscovery();
 
@@ -82,30 +204,54 @@ public class WiFiDirectManager {
 
         discoverPeers();
 
-        Log.d("WiFiDirectActivity", "WiFi Direct initialized");
+        Log.d("WiFiDirectActivity", "WiFi Direct initializing");
     }
 
-    
+    private void onStartOperationDone() {
+        if (state != State.STARTING) {
+            // stopped before the framework answered
+            return;
+        }
+
+        pendingStartOperations--;
+        if (pendingStartOperations > 0) {
+            return;
+        }
+
+        state = State.RUNNING;
+        long now = SystemClock.elapsedRealtime();
+        startLatencyMs = now - startRequestedAt;
+        if (restartStopRequestedAt > 0) {
+            restartLatencyMs = now - restartStopRequestedAt;
+            restartStopRequestedAt = 0;
+        }
+        Log.d("WiFiDirectActivity", "WiFi Direct initialized in " + startLatencyMs + " ms");
+    }
 
+    @Override
     public void stop() {
+        // a stop cancels a start that was waiting for the previous stop
+        startQueued = false;
+        restartStopRequestedAt = 0;
+
+        if (state == State.STOPPED || state == State.STOPPING) {
+            return;
+        }
+
+        state = State.STOPPING;
+        stopRequestedAt = SystemClock.elapsedRealtime();
         pendingShutdownOperations = 4; // Adding one more operation for group removal
     
         ActionListener completionListener = new ActionListener() {
             @Override
             public void onSuccess() {
-                synchronized (this) {
-                    pendingShutdownOperations--;
-                    checkForCompleteShutdown();
-                }
+                onShutdownOperationDone();
             }
     
             @Override
             public void onFailure(int reason) {
-                synchronized (this) {
-                    pendingShutdownOperations--;
-                    Log.e("WiFiDirectActivity", "Operation failed with reason: " + reason);
-                    checkForCompleteShutdown();
-                }
+                Log.e("WiFiDirectActivity", "Operation failed with reason: " + reason);
+                onShutdownOperationDone();
             }
         };
     
@@ -121,31 +267,22 @@ public class WiFiDirectManager {
         if (manager != null && channel != null) {
             // Request current group info and remove if exists
             manager.requestGroupInfo(channel, group -> {
-                if (group != null) {
+                if (group != null && manager != null) {
                     manager.removeGroup(channel, new ActionListener() {
                         @Override
                         public void onSuccess() {
                             Log.d("WiFiDirectActivity", "Removed from P2P group");
-                            synchronized (this) {
-                                pendingShutdownOperations--;
-                                checkForCompleteShutdown();
-                            }
+                            onShutdownOperationDone();
                         }
         
                         @Override
                         public void onFailure(int reason) {
                             Log.e("WiFiDirectActivity", "Failed to remove from P2P group, reason: " + reason);
-                            synchronized (this) {
-                                pendingShutdownOperations--;
-                                checkForCompleteShutdown();
-                            }
+                            onShutdownOperationDone();
                         }
                     });
                 } else {
-                    synchronized (this) {
-                        pendingShutdownOperations--; // No group to remove, decrement counter
-                        checkForCompleteShutdown();
-                    }
+                    onShutdownOperationDone(); // No group to remove
                 }
             });
     
@@ -153,24 +290,56 @@ public class WiFiDirectManager {
             manager.removeLocalService(channel, serviceInfo, completionListener);
             manager.removeServiceRequest(channel, serviceRequest, completionListener);
             manager.stopPeerDiscovery(channel, completionListener);
+            mainHandler.postDelayed(shutdownTimeout, SHUTDOWN_TIMEOUT_MS);
+        } else {
+            pendingShutdownOperations = 0;
         }
+        mainHandler.removeCallbacks(groupConnectRetry);
+        closeDataPath();
+        wifiP2pInfo = null;
+
         serviceInfo = null;
         serviceRequest = null;
         peers.clear();
         deviceMap.clear();
+
+        if (pendingShutdownOperations == 0) {
+            finishStop();
+        }
     }
-    
-    private void checkForCompleteShutdown() {
+
+    private void onShutdownOperationDone() {
+        if (state != State.STOPPING) {
+            // late answer after the shutdown timed out
+            return;
+        }
+
+        pendingShutdownOperations--;
         if (pendingShutdownOperations == 0) {
-            manager = null;
-            channel = null;
-            Log.d("WiFiDirectActivity", "All resources cleared and manager, channel set to null");
+            finishStop();
+        }
+    }
+
+    private void finishStop() {
+        mainHandler.removeCallbacks(shutdownTimeout);
+        pendingShutdownOperations = 0;
+        manager = null;
+        channel = null;
+        state = State.STOPPED;
+        stopLatencyMs = SystemClock.elapsedRealtime() - stopRequestedAt;
+        Log.d("WiFiDirectActivity", "All resources cleared and manager, channel set to null after " + stopLatencyMs + " ms");
+
+        if (startQueued) {
+            // restart latency covers the whole way from the stop request until RUNNING again
+            startQueued = false;
+            restartStopRequestedAt = stopRequestedAt;
+            startNow();
         }
     }
 
     private void registerService() {
         Map<String, String> record = new HashMap();
-        record.put("listeningPort", "8888");
+        record.put("listeningPort", String.valueOf(PORT));
         serviceInfo = WifiP2pDnsSdServiceInfo.newInstance(
                 "_katappwifidirectservice", "_presence._tcp", record);
 
@@ -178,11 +347,13 @@ public class WiFiDirectManager {
             @Override
             public void onSuccess() {
                 Log.d("WiFiDirectActivity", "Local Service Added");
+                onStartOperationDone();
             }
 
             @Override
             public void onFailure(int reason) {
                 Log.d("WiFiDirectActivity", "Failed to add a service");
+                onStartOperationDone();
             }
         });
 
@@ -193,11 +364,13 @@ public class WiFiDirectManager {
                     @Override
                     public void onSuccess() {
                         Log.d("WiFiDirectActivity", "Added service discovery request");
+                        onStartOperationDone();
                     }
 
                     @Override
                     public void onFailure(int code) {
                         Log.d("WiFiDirectActivity", "Failed adding service discovery request");
+                        onStartOperationDone();
                     }
                 });
     }
@@ -212,7 +385,7 @@ public class WiFiDirectManager {
                     deviceMap.put(device.deviceAddress, device);
                     if (!peers.contains(device)) {
                         peers.add(device);
-                        connectToFirstDevice(); // if Service is found later than peer add manually
+                        connectToGroup(); // if Service is found later than peer add manually
                     }
                     Log.d("WiFiDirectActivity", "Service discovery success, added peer: " + device.deviceName);
                 }
@@ -227,7 +400,7 @@ public class WiFiDirectManager {
                     deviceMap.put(device.deviceAddress, device);
                     if (!peers.contains(device)) {
                         peers.add(device);
-                        connectToFirstDevice(); // if Service is found later than peer add manually
+                        connectToGroup(); // if Service is found later than peer add manually
                     }
                     Log.d("WiFiDirectActivity", "Service discovery success, added peer: " + device.deviceName);
                 }
@@ -248,6 +421,10 @@ public class WiFiDirectManager {
     }
 
     public void discoverPeers() {
+        if (manager == null || channel == null) {
+            return;
+        }
+
         manager.discoverPeers(channel, new WifiP2pManager.ActionListener() {
             @Override
             public void onSuccess() {
@@ -263,6 +440,10 @@ public class WiFiDirectManager {
     }
 
     public void discoverServices() {
+        if (manager == null || channel == null) {
+            return;
+        }
+
         // manager.setDnsSdResponseListeners(channel, servListener, txtListener);
         // manager.setDnsSdTxtRecordListener(channel, txtListener);
         manager.discoverServices(channel, new WifiP2pManager.ActionListener() {
@@ -281,6 +462,11 @@ public class WiFiDirectManager {
     private PeerListListener peerListListener = new PeerListListener() {
         @Override
         public void onPeersAvailable(WifiP2pDeviceList peerList) {
+            if (state == State.STOPPING || state == State.STOPPED) {
+                // requested before the stop, the session is gone
+                return;
+            }
+
             Collection<WifiP2pDevice> refreshedPeers = peerList.getDeviceList();
             // Filter peers to include only those that offer the same service
             Log.d("WiFiDirectActivity", "Peer list changed. Amount of peers: " + refreshedPeers.size());
@@ -296,9 +482,12 @@ public class WiFiDirectManager {
                 }
             }
 
-            if (!filteredPeers.equals(peers)) {
-                peers.clear();
-                peers.addAll(filteredPeers);
+            // WifiP2pDevice equality only compares the address, keep the refreshed devices for their status
+            boolean peersChanged = !filteredPeers.equals(peers);
+            peers.clear();
+            peers.addAll(filteredPeers);
+
+            if (peersChanged) {
 
                 Log.d("WiFiDirectActivity",
                         "Filtered peer list changed. Amount of peers offering the service: " + filteredPeers.size());
@@ -308,13 +497,15 @@ public class WiFiDirectManager {
                     Log.d("WiFiDirectActivity", "Service Peer: " + peer.deviceName + " " + peer.deviceAddress);
                 }
 
-                connectToFirstDevice();
+                groupConnectAttempts = 0;
+                connectToGroup();
             }
 
             if (peers.size() == 0) {
                 Log.d("WiFiDirectActivity", "No service devices found");
-                if (wiFiP2PConnectionInfoListener != null) {
-                    wiFiP2PConnectionInfoListener.onConnectionInfoAvailable(null);
+                closeDataPath();
+                if (connectionListener != null) {
+                    connectionListener.onConnectionChanged(null);
                 }
 
                 // start broadcasting again if stopped
@@ -323,6 +514,9 @@ public class WiFiDirectManager {
                     
                     // if group exsist remove it
                     manager.requestGroupInfo(channel, group -> {
+                        if (manager == null) {
+                            return;
+                        }
                         if (group != null) {
                             manager.removeGroup(channel, new ActionListener() {
                                 @Override
@@ -350,25 +544,236 @@ public class WiFiDirectManager {
     private ConnectionInfoListener connectionInfoListener = new ConnectionInfoListener() {
         @Override
         public void onConnectionInfoAvailable(WifiP2pInfo info) {
-            if (wiFiP2PConnectionInfoListener != null) {
-                wifiP2pInfo = info;
-                wiFiP2PConnectionInfoListener.onConnectionInfoAvailable(info);
+            if (state == State.STOPPING || state == State.STOPPED) {
+                return;
+            }
+
+            wifiP2pInfo = info;
+            if (info != null && info.groupFormed) {
+                groupConnectAttempts = 0;
+                mainHandler.removeCallbacks(groupConnectRetry);
+                openDataPath(info);
+            } else {
+                closeDataPath();
+            }
+
+            if (connectionListener != null) {
+                notifyConnectionInfo(info);
             }
         }
     };
 
-    public void connectToFirstDevice() {
-        List<WifiP2pDevice> filteredPeers = new ArrayList<>();
+    private void notifyConnectionInfo(WifiP2pInfo info) {
+        if (info == null) {
+            connectionListener.onConnectionChanged(null);
+            return;
+        }
+
+        if (!info.groupFormed) {
+            Log.d("WiFiDirectActivity", "Group not formed");
+            return;
+        }
+
+        Map<String, Object> connectionInfo = new HashMap<>();
+        connectionInfo.put("groupOwnerAddress", info.groupOwnerAddress.getHostAddress());
+        connectionInfo.put("isGroupOwner", info.isGroupOwner);
+        connectionListener.onConnectionChanged(connectionInfo);
+    }
+
+    private void openDataPath(WifiP2pInfo info) {
+        groupOwner = info.isGroupOwner;
+        if (info.isGroupOwner) {
+            startServer(info.groupOwnerAddress);
+        } else {
+            connectToGroupOwner(info.groupOwnerAddress);
+        }
+    }
+
+    private synchronized void startServer(InetAddress groupOwnerAddress) {
+        if (serverSocket != null) {
+            return;
+        }
+
+        ServerSocket server;
+        try {
+            // accepted sockets inherit the receive buffer, it has to be set before binding
+            server = new ServerSocket();
+            server.setReceiveBufferSize(readBufferSize);
+            server.bind(new InetSocketAddress(groupOwnerAddress, PORT), 50);
+        } catch (IOException e) {
+            Log.e("WiFiDirectActivity", "Error creating server socket", e);
+            return;
+        }
+        serverSocket = server;
+        Log.d("WiFiDirectActivity", "Listening on " + groupOwnerAddress.getHostAddress() + ":" + PORT);
+
+        acceptThread = new Thread(() -> {
+            try {
+                while (true) {
+                    addLink(server, server.accept());
+                }
+            } catch (IOException e) {
+                Log.d("WiFiDirectActivity", "Server socket closed");
+            }
+        });
+        acceptThread.start();
+    }
+
+    private synchronized void connectToGroupOwner(InetAddress groupOwnerAddress) {
+        if (connectThread != null || !links.isEmpty()) {
+            return;
+        }
+
+        connectThread = new Thread(() -> {
+            // the group owner opens its server once it got the group info as well, retry a few times
+            for (int attempt = 1; attempt <= SOCKET_CONNECT_ATTEMPTS && !Thread.currentThread().isInterrupted(); attempt++) {
+                Socket socket = new Socket();
+                try {
+                    socket.setReceiveBufferSize(readBufferSize);
+                    socket.connect(new InetSocketAddress(groupOwnerAddress, PORT), SOCKET_CONNECT_TIMEOUT_MS);
+                    addLink(Thread.currentThread(), socket);
+                    break;
+                } catch (IOException e) {
+                    Log.d("WiFiDirectActivity", "Connecting to group owner failed, attempt " + attempt + ": " + e.getMessage());
+                    try {
+                        socket.close();
+                        Thread.sleep(SOCKET_CONNECT_RETRY_DELAY_MS);
+                    } catch (IOException | InterruptedException e2) {
+                        break;
+                    }
+                }
+            }
+
+            synchronized (WiFiDirectManager.this) {
+                if (connectThread == Thread.currentThread()) {
+                    connectThread = null;
+                }
+            }
+        });
+        connectThread.start();
+    }
+
+    /**
+     * Adds the link of a connected socket. The owner is the server socket or connect thread that produced it,
+     * a socket whose owner was closed by closeDataPath in the meantime belongs to a past session and is closed.
+     */
+    private synchronized void addLink(Object owner, Socket socket) {
+        if (owner != serverSocket && owner != connectThread) {
+            Log.d("WiFiDirectActivity", "Data path closed, dropping connection to " + socket.getInetAddress());
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e("WiFiDirectActivity", "Error closing socket", e);
+            }
+            return;
+        }
+
+        WiFiDirectLink link = new WiFiDirectLink(socket, this);
+        WiFiDirectLink previous = links.put(link.getAddress(), link);
+        if (previous != null) {
+            // the member reconnected, the old socket is dead
+            previous.close();
+        }
+        link.start();
+        Log.d("WiFiDirectActivity", "Connected to group member " + link.getAddress() + ", members: " + links.size());
+    }
+
+    void onLinkClosed(WiFiDirectLink link) {
+        if (links.remove(link.getAddress(), link)) {
+            Log.d("WiFiDirectActivity", "Group member " + link.getAddress() + " disconnected, members: " + links.size());
+        }
+    }
+
+    TransportStats getTransportStats() {
+        return stats;
+    }
+
+    @Override
+    public void setReadBufferSize(int bytes) {
+        readBufferSize = bytes;
+    }
+
+    int getReadBufferSize() {
+        return readBufferSize;
+    }
+
+    private synchronized void closeDataPath() {
+        if (connectThread != null) {
+            connectThread.interrupt();
+            connectThread = null;
+        }
+
+        groupOwner = false;
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                Log.e("WiFiDirectActivity", "Error closing server socket", e);
+            }
+            serverSocket = null;
+            acceptThread = null;
+        }
+
+        for (WiFiDirectLink link : links.values()) {
+            link.close();
+        }
+        links.clear();
+    }
+
+    void onLinkFrame(WiFiDirectLink source, byte type, byte flags, byte[] data, int offset, int length) {
+        if (type != FrameCodec.TYPE_MESSAGE) {
+            Log.d("WiFiDirectActivity", "Ignoring frame of type " + type);
+            return;
+        }
+
+        stats.onMessageReceived(length);
+
+        // clients are only connected to the group owner, it forwards their messages to the other clients
+        if (groupOwner && links.size() > 1) {
+            sendToLinks(FrameCodec.encode(type, flags, Arrays.copyOfRange(data, offset, offset + length)), source);
+        }
+
+        String message = FrameCodec.decodeString(data, offset, length);
+
+        mainHandler.post(() -> {
+            if (messageListener != null) {
+                messageListener.onMessageReceived(message);
+            }
+        });
+    }
+
+    /**
+     * Joins the group of a peer that already is a group owner, otherwise invites a peer to form a new group.
+     * Members of a formed group do not connect to anyone, new peers join them.
+     */
+    public void connectToGroup() {
+        if (manager == null || channel == null) {
+            return;
+        }
+
+        if (wifiP2pInfo != null && wifiP2pInfo.groupFormed) {
+            Log.d("WiFiDirectActivity", "Already in a group, waiting for peers to join");
+            return;
+        }
+
+        WifiP2pDevice target = null;
         for (WifiP2pDevice device : peers) {
-            if (deviceMap.containsKey(device.deviceAddress)) {
-                filteredPeers.add(device);
+            if (!deviceMap.containsKey(device.deviceAddress) || device.status == WifiP2pDevice.UNAVAILABLE) {
+                continue;
+            }
+            if (device.isGroupOwner()) {
+                target = device;
+                break;
+            }
+            if (target == null) {
+                target = device;
             }
         }
 
-        Log.d("WiFiDirectActivity", "Connecting. Peers size: " + filteredPeers.size());
+        Log.d("WiFiDirectActivity", "Connecting. Peers size: " + peers.size());
 
-        if (filteredPeers.size() > 0) {
-            connect(filteredPeers.get(filteredPeers.size() - 1));
+        if (target != null) {
+            connect(target);
         }
     }
 
@@ -376,18 +781,29 @@ public class WiFiDirectManager {
         WifiP2pConfig config = new WifiP2pConfig();
         config.deviceAddress = device.deviceAddress;
         config.wps.setup = WpsInfo.PBC;
+        if (device.isGroupOwner()) {
+            // join as a client, the existing owner keeps serving the other members
+            config.groupOwnerIntent = 0;
+        }
 
         manager.connect(channel, config, new ActionListener() {
 
             @Override
             public void onSuccess() {
-                // WiFiDirectBroadcastReceiver notifies us. Ignore for now.
+                // WiFiDirectBroadcastReceiver notifies us once the group is formed
             }
 
             @Override
             public void onFailure(int reason) {
-                Log.d("WiFiDirectActivity", "Connect failed. Retry.");
-                connectToFirstDevice();
+                groupConnectAttempts++;
+                if (groupConnectAttempts >= MAX_GROUP_CONNECT_ATTEMPTS) {
+                    Log.d("WiFiDirectActivity", "Connect failed, giving up until the peers change. Reason: " + reason);
+                    return;
+                }
+
+                Log.d("WiFiDirectActivity", "Connect failed. Retry " + groupConnectAttempts + ". Reason: " + reason);
+                mainHandler.removeCallbacks(groupConnectRetry);
+                mainHandler.postDelayed(groupConnectRetry, GROUP_CONNECT_RETRY_DELAY_MS * groupConnectAttempts);
             }
         });
     }
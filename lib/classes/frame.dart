@@ -0,0 +1,28 @@
+import 'dart:convert';
+import 'dart:typed_data';
+
+// Binary framing shared with the native transports (see FrameCodec.java)
+// | length (uint32, big endian) | version (1) | type (1) | flags (1) | payload (length bytes) |
+class Frame {
+  static const int headerSize = 7;
+  static const int version = 1;
+
+  static const int typeMessage = 1;
+
+  static const int flagNone = 0;
+
+  static Uint8List encode(int type, int flags, List<int> payload) {
+    final Uint8List frame = Uint8List(headerSize + payload.length);
+    ByteData.sublistView(frame, 0, headerSize)
+      ..setUint32(0, payload.length, Endian.big)
+      ..setUint8(4, version)
+      ..setUint8(5, type)
+      ..setUint8(6, flags);
+    frame.setRange(headerSize, frame.length, payload);
+    return frame;
+  }
+
+  static Uint8List encodeMessage(String messageJson) {
+    return encode(typeMessage, flagNone, utf8.encode(messageJson));
+  }
+}
@@ -6,6 +6,7 @@ import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
 import 'package:flutter_blue_plus/flutter_blue_plus.dart';
 import 'package:flutter_p2p_demo/classes/Message.dart';
+import 'package:flutter_p2p_demo/classes/frame.dart';
 import 'package:permission_handler/permission_handler.dart';
 
 // import location manager
@@ -29,14 +30,20 @@ class BluetoothPageState extends State<BluetoothPage> {
   final TextEditingController _controller = TextEditingController();
 
   final List<Message> appData = [];
+  // message loads that are waiting for the native side, and the messages evicted meanwhile
+  int _pendingMessageLoads = 0;
+  final Set<String> _evictedWhileLoading = {};
   int activeConnections = 0;
 
+  // negotiated MTU and PHY per central connected to our GATT server
+  List<dynamic> connectionParameters = [];
+
   Timer? updateTimer;
 
   static const platform =
       MethodChannel('org.katapp.flutter_p2p_demo.bluetooth/controller');
   static const messageStream =
-      EventChannel('org.katapp.flutter_p2p_demo.bluetooth/connection');
+      EventChannel('org.katapp.flutter_p2p_demo.bluetooth/message');
 
   final Guid serviceUUID = Guid('c07b8cf2-b8ff-4ef4-b4e1-dd8aa2415f81');
   final Guid characteristicUUID = Guid('5e6525b1-4a90-4baf-a4a1-9b4a53641970');
@@ -47,6 +54,9 @@ class BluetoothPageState extends State<BluetoothPage> {
 
   List<int> messageQueue = [];
 
+  // maximum length of a characteristic value, and therefore of a long write
+  static const int maxLongWriteLength = 512;
+
   // save time when page was opened and first connection achieved
   DateTime? pageOpenTime;
   DateTime? firstConnectionTime;
@@ -78,6 +88,7 @@ class BluetoothPageState extends State<BluetoothPage> {
     _updateLocationStatus();
 
     messageStream.receiveBroadcastStream().listen(_onMessageListUpdate);
+    _loadMessageList();
 
     // every 2 sec update the active connections
     updateTimer = Timer.periodic(const Duration(seconds: 2), (timer) {
@@ -101,31 +112,88 @@ class BluetoothPageState extends State<BluetoothPage> {
     super.dispose();
   }
 
-  void _onMessageListUpdate(dynamic messageListJson) async {
+  // the native side only sends the messages that were added to or evicted from its list
+  void _onMessageListUpdate(dynamic messageListDeltaJson) async {
+    Map<String, dynamic> delta = jsonDecode(messageListDeltaJson);
+
+    List<dynamic> evicted = delta['evicted'];
+    if (evicted.isNotEmpty) {
+      setState(() {
+        appData.removeWhere((message) => evicted.any((key) => key['id'] == message.id && key['sender'] == message.sender));
+      });
+
+      // an add of the same message may still be waiting for its received data
+      if (_pendingMessageLoads > 0) {
+        _evictedWhileLoading.addAll(evicted.map((key) => _messageKey(key['id'], key['sender'])));
+      }
+    }
+
+    List<dynamic> added = delta['added'];
+    for (var messageJson in added) {
+      // added again after it was evicted, the newer delta wins
+      _evictedWhileLoading.remove(_messageKey(messageJson['id'], messageJson['sender']));
+    }
+
+    await _addReceivedMessages(added);
+  }
+
+  // full list for messages received before this page subscribed to the deltas
+  void _loadMessageList() async {
+    _pendingMessageLoads++;
+    try {
+      dynamic messageListJson = await platform.invokeMethod('getMessageList');
+      await _addReceivedMessages(jsonDecode(messageListJson));
+    } finally {
+      _finishMessageLoad();
+    }
+  }
 
-    List<Message> newMessages = [];
+  Future<void> _addReceivedMessages(List<dynamic> messageList) async {
+    List<String> newMessageStrings = [];
 
-    List<dynamic> messageList = jsonDecode(messageListJson);
     for (var messageJson in messageList) {
       Message message = Message.fromJson(messageJson);
 
       // if message not in appData, add it
       if (!appData.contains(message)) {
-        //message.receivedLocation ??= LocationManager.getCurrentLocation();
-        dynamic fullDataMessageString = await platform.invokeMethod('addDataToReceivedMessage', {'message': jsonEncode(message.toJson())});
-
-        Message fullMessage = Message.fromJson(jsonDecode(fullDataMessageString));
-        //fullMessage.calculateDistanceBetweenLocations();
-        newMessages.add(fullMessage);
-        newMessages.sort((a, b) => b.timeReceived!.compareTo(a.timeReceived!));
+        newMessageStrings.add(jsonEncode(message.toJson()));
       }
     }
 
-    setState(() {      
-      appData.insertAll(0, newMessages);
-    });
+    if (newMessageStrings.isEmpty) {
+      return;
+    }
+
+    _pendingMessageLoads++;
+    try {
+      // the whole batch is stamped with the same received time and location in one call
+      List<dynamic> fullDataMessageStrings = await platform.invokeMethod('addDataToReceivedMessages', {'messages': newMessageStrings});
+
+      // newest first, like the rest of the list
+      List<Message> newMessages = fullDataMessageStrings.reversed
+          .map((messageString) => Message.fromJson(jsonDecode(messageString)))
+          .toList();
+
+      setState(() {
+        // the list may have changed while the messages were stamped, check again
+        newMessages.removeWhere((message) =>
+            appData.contains(message) || _evictedWhileLoading.contains(_messageKey(message.id, message.sender)));
+        appData.insertAll(0, newMessages);
+      });
+    } finally {
+      _finishMessageLoad();
+    }
   }
 
+  void _finishMessageLoad() {
+    _pendingMessageLoads--;
+    if (_pendingMessageLoads == 0) {
+      _evictedWhileLoading.clear();
+    }
+  }
+
+  static String _messageKey(dynamic id, dynamic sender) => '$sender/$id';
+
   /*
   void _getDataFromAllConnectedDevices() async {
     for (BluetoothDevice device in FlutterBluePlus.connectedDevices) {
@@ -233,8 +301,11 @@ class BluetoothPageState extends State<BluetoothPage> {
   }
 
   void updateActiveConnections() async {
+    List<dynamic> parameters = await platform.invokeMethod('getConnectionParameters');
+
     setState(() {
       activeConnections = FlutterBluePlus.connectedDevices.length;
+      connectionParameters = parameters;
     });
   }
 
@@ -266,9 +337,14 @@ class BluetoothPageState extends State<BluetoothPage> {
   Future<void> splitWrite(List<int> value, BluetoothCharacteristic characteristic, {int timeout = 15}) async {
     if (messageQueue.isEmpty) {
       int chunk = characteristic.device.mtuNow - 5; // 3 + 2 bytes ble overhead
-      for (int i = 0; i < value.length; i += chunk) {
-        List<int> subvalue = value.sublist(i, min(i + chunk, value.length));
-        await characteristic.write(subvalue, withoutResponse: true, timeout: timeout);
+      if (value.length > chunk && value.length <= maxLongWriteLength) {
+        // send the whole frame as one prepared (long) write instead of many small writes
+        await characteristic.write(value, allowLongWrite: true, timeout: timeout);
+      } else {
+        for (int i = 0; i < value.length; i += chunk) {
+          List<int> subvalue = value.sublist(i, min(i + chunk, value.length));
+          await characteristic.write(subvalue, withoutResponse: true, timeout: timeout);
+        }
       }
       Future.delayed(const Duration(milliseconds: 100), () {
         _sendSplitWriteQueue(characteristic);
@@ -291,11 +367,8 @@ class BluetoothPageState extends State<BluetoothPage> {
   }
 
   Future<void> sendDataToAllDevices(String message) async {
-    // append message delimiter
-    String fullMessage = "$message%";
-
-    List<int> messageBytes =
-        utf8.encode(fullMessage); // Convert string to byte array
+    // wrap message in a length prefixed frame
+    List<int> messageBytes = Frame.encodeMessage(message);
 
     for (BluetoothDevice device in FlutterBluePlus.connectedDevices) {
       List<BluetoothService> services = await device.discoverServices();
@@ -560,6 +633,8 @@ class BluetoothPageState extends State<BluetoothPage> {
               crossAxisAlignment: CrossAxisAlignment.start,
               children: [
                 Text('Active Connections: $activeConnections'),
+                for (var parameters in connectionParameters)
+                  Text('${parameters['address']}: MTU ${parameters['mtu']} | PHY tx ${parameters['txPhy']} rx ${parameters['rxPhy']}'),
                 Text(firstConnectionTime != null ? "Connection Time: ${firstConnectionTime?.difference(pageOpenTime!).inSeconds} seconds" : "No connections yet"),
                 Text('Recieved: ${appData.where((message) => message.timeReceived != null).length} | Sent: ${appData.where((message) => message.timeReceived == null).length}'),
               ],
@@ -100,6 +100,9 @@ class BluetoothClassicState extends State<BluetoothClassicPage> {
   void _init() async {
     await Permission.nearbyWifiDevices.request();
     await Permission.location.request();
+    await Permission.bluetoothConnect.request();
+    await Permission.bluetoothScan.request();
+    await Permission.bluetoothAdvertise.request();
 
     try {
       await platform.invokeMethod('start');
@@ -29,7 +29,7 @@ class WiFiAwarePageState extends State<WiFiAwarePage> {
       EventChannel('org.katapp.flutter_p2p_demo.wifiaware/connection');
   
   static const EventChannel _messageEventChannel = 
-      EventChannel('org.katapp.flutter_p2p_demo.wifiaware/messageStream');
+      EventChannel('org.katapp.flutter_p2p_demo.wifiaware/message');
 
   bool locationEnabled = false;
   bool connected = false;
@@ -110,7 +110,7 @@ class WiFiAwarePageState extends State<WiFiAwarePage> {
 
   void _sendMessageToSubscribers(Message messasge) {
     print('Sending message to subscribers: $messasge');
-    platform.invokeMethod('sendMessageToSubscribers', {'message': jsonEncode(messasge.toJson())});
+    platform.invokeMethod('sendMessage', {'message': jsonEncode(messasge.toJson())});
   }
 
   void _createMessage(String size) async {
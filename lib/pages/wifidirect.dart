@@ -1,6 +1,5 @@
 import 'dart:async';
 import 'dart:convert';
-import 'dart:io';
 
 import 'package:flutter/material.dart';
 import 'package:flutter/services.dart';
@@ -25,12 +24,6 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
   bool isConnected = false;
   bool isGroupOwner = false;
 
-  ServerSocket? serverSocket;
-  final List<Socket> clients = [];
-  Socket? clientSocket;
-
-  String previousData = '';
-
   Timer? updateTimer;
 
   DateTime? pageOpenTime;
@@ -47,6 +40,9 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
   static const EventChannel _connectionEventChannel =
       EventChannel('org.katapp.flutter_p2p_demo.wifidirect/connection');
 
+  static const EventChannel _messageEventChannel =
+      EventChannel('org.katapp.flutter_p2p_demo.wifidirect/message');
+
   bool locationEnabled = false;
 
   @override
@@ -60,6 +56,9 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
     _connectionEventChannel
         .receiveBroadcastStream()
         .listen(_onConnectionChange, onError: _onError);
+    _messageEventChannel
+        .receiveBroadcastStream()
+        .listen(_onMessageReceived);
     _start();
   }
 
@@ -67,15 +66,8 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
   void dispose() {
     _stopWiFiDirect();
     _connectionEventChannel.receiveBroadcastStream().listen(null);
+    _messageEventChannel.receiveBroadcastStream().listen(null);
 
-    serverSocket?.close();
-    clientSocket?.close();
-    for (final client in clients) {
-      client.close();
-    }
-    serverSocket = null;
-    clientSocket = null;
-    clients.clear();
     _controller.dispose();
     automatedMessageTimer?.cancel();
     super.dispose();
@@ -111,15 +103,7 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
         isConnected = false;
         isGroupOwner = false;
       });
-      // close all sockets
-      serverSocket?.close();
-      clientSocket?.close();
-      for (final client in clients) {
-        client.close();
-      }
-      serverSocket = null;
-      clientSocket = null;
-      clients.clear();
+      // the sockets are closed by the native side
       return;
     }
 
@@ -139,12 +123,11 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
     // Use the received information as needed
     print("Group Owner Address: $groupOwnerAddress");
     print("Is Group Owner: $isGroupOwner");
+  }
 
-    if (isGroupOwner) {
-      _startServerSocket();
-    } else {
-      _connectToHost(groupOwnerAddress);
-    }
+  void _onMessageReceived(dynamic event) {
+    final message = Message.fromJson(jsonDecode(event));
+    _addMessage(message);
   }
 
   void _createMessage(String size) async {
@@ -162,8 +145,6 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
     Message message = Message.fromJson(jsonDecode(messageJsonString));
     //message.sentLocation = LocationManager.getCurrentLocation();
 
-    String newMessageJsonString = "${jsonEncode(message.toJson())}%";
-
     if (appData.contains(message)) {
       return;
     }
@@ -174,13 +155,8 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
 
     //_controller.clear();
 
-    if (isGroupOwner && isConnected) {
-      for (final client in clients) {
-        client.write(newMessageJsonString);
-      }
-    } else if (isConnected) {
-      clientSocket?.write(newMessageJsonString);
-    }
+    // the native side sends it to all connected group members
+    platform.invokeMethod('sendMessage', {'message': jsonEncode(message.toJson())});
   }
 
   void _addMessage(Message message) async {
@@ -209,88 +185,6 @@ class WiFiDirectPageState extends State<WiFiDirectPage> {
     */
   }
 
-  void _startServerSocket() async {
-    serverSocket = await ServerSocket.bind(InternetAddress.anyIPv4, 8888);
-    print('Hosting on: ${serverSocket?.address.address}:${serverSocket?.port}');
-    try {
-      serverSocket?.listen((client) {
-        _handleClientConnection(client);
-      });
-    } catch (e) {
-      print('Error: $e');
-    }
-  }
-
-  void _handleClientConnection(Socket client) async {
-    print(
-        'Client connected: ${client.remoteAddress.address}:${client.remotePort}');
-    clients.add(client);
-    client.listen((data) {
-      final messageJsonString = utf8.decode(data);
-      print(
-          'Data from ${client.remoteAddress.address}:${client.remotePort} - $messageJsonString');
-      
-      // if message ends with % then its full message
-      if (messageJsonString.endsWith('%')) {
-        String fullMessage = previousData + messageJsonString.substring(0, messageJsonString.length - 1);
-        // split message on % and get all messages
-        List<String> messages = fullMessage.split('%');
-        previousData = '';
-
-        // loop through all messages and add them
-        for (String singleMessage in messages) {
-          try {
-            final message = Message.fromJson(jsonDecode(singleMessage));
-            _addMessage(message);
-          } catch (e) {
-            print('Error: $e');
-          }
-        }
-      } else {
-        previousData += messageJsonString;
-      }
-    }, onDone: () {
-      clients.remove(client);
-      print(
-          'Client disconnected: ${client.remoteAddress.address}:${client.remotePort}');
-    });
-  }
-
-  Future<void> _connectToHost(String address) async {
-    try {
-      clientSocket = await Socket.connect(address, 8888);
-      print(
-          'Connected to: ${clientSocket?.remoteAddress.address}:${clientSocket?.port}');
-
-      clientSocket?.listen((data) {
-        final messageJsonString = utf8.decode(data);
-        print('Data from ${clientSocket?.remoteAddress.address}:${clientSocket?.port} - $messageJsonString');
-
-        // if message ends with % then its full message
-        if (messageJsonString.endsWith('%')) {
-          String fullMessage = previousData + messageJsonString.substring(0, messageJsonString.length - 1);
-          // split message on % and get all messages
-          List<String> messages = fullMessage.split('%');
-          previousData = '';
-
-          // loop through all messages and add them
-          for (String singleMessage in messages) {
-            try {
-              final message = Message.fromJson(jsonDecode(singleMessage));
-              _addMessage(message);
-            } catch (e) {
-              print('Error: $e');
-            }
-          }
-        } else {
-          previousData += messageJsonString;
-        }
-        });
-    } catch (e) {
-      print('Error: $e');
-    }
-  }
-
   void _toggleLocation() async {
     //LocationManager.updateLocationStatus(!LocationManager.isLocationEnabled());
     //_updateLocationStatus();